@@ -0,0 +1,19 @@
+#!/bin/sh
+# Компилира програмата в out/TableApp.jar и създава CDS архив out/TableApp.jsa
+# с класовете, заредени при кратко тренировъчно изпълнение.
+# Архивът е валиден само за версията на JDK, с която е създаден (нужен е JDK 13+),
+# и само за същия път до jar файла - затова пътищата са абсолютни.
+set -e
+cd "$(dirname "$0")"
+OUT="$(pwd)/out"
+
+rm -rf out/classes out/TableApp.jar out/TableApp.jsa
+mkdir -p out
+javac -encoding UTF-8 -d out/classes $(find src -name '*.java')
+jar --create --file out/TableApp.jar --main-class Main -C out/classes .
+
+# Тренировъчно изпълнение с най-често използваните команди
+printf 'edit 1 1 1\nedit 1 2 =R1C1+1\nprint\nhelp\nexit\n' \
+    | java -XX:ArchiveClassesAtExit="$OUT/TableApp.jsa" -jar "$OUT/TableApp.jar" > /dev/null
+
+echo "Run: java -XX:SharedArchiveFile=$OUT/TableApp.jsa -jar $OUT/TableApp.jar"
@@ -1,22 +1,43 @@
 import cli.CommandProcessor;
 import core.Spreadsheet;
-import java.util.Scanner;
+import core.Workbook;
+import server.SheetClient;
+import server.SheetServer;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
 
 /**
  * Началната точка на програмата. Инициализира необходимите обекти и започва командния цикъл.
+ * С аргумент --server [порт] стартира TCP сървър, а с --connect [порт] - клиент към него.
  */
 public class Main {
-    public static void main(String[] args) {
-        Scanner scanner = new Scanner(System.in);
-        Spreadsheet spreadsheet = new Spreadsheet();
-        CommandProcessor processor = new CommandProcessor(spreadsheet);
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : SheetServer.DEFAULT_PORT;
+            SheetServer server = new SheetServer(new Spreadsheet());
+            server.start(port);
+            System.out.println("Spreadsheet server listening on port " + server.getPort() + ".");
+            server.acceptLoop();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--connect")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : SheetServer.DEFAULT_PORT;
+            new SheetClient("localhost", port).run(System.in, System.out);
+            return;
+        }
+
+        // BufferedReader вместо Scanner - Scanner зарежда regex класове при стартиране
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        CommandProcessor processor = new CommandProcessor(new Workbook());
 
         System.out.println("Spreadsheet CLI ready. Type 'help'.");
 
         while (true) {
             System.out.print("> ");
-            String line = scanner.nextLine();
+            String line = in.readLine();
+            if (line == null) return; // край на входа (напр. при скрипт)
             processor.process(line);
         }
     }
-}
\ No newline at end of file
+}
@@ -2,29 +2,74 @@ package cli;
 
 import commands.*;
 import core.Spreadsheet;
+import core.Workbook;
 
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Обработва и изпълнява потребителски команди.
+ * Командите работят върху текущата таблица от работната книга; use сменя таблицата.
+ * Всеки Command обект се създава при първото използване на командата,
+ * за да не забавя стартирането на кратки скриптове.
  */
 public class CommandProcessor {
     /**
-     * Свързва името на всяка команда (като низ) със съответния Command обект
+     * Свързва името на всяка вече използвана команда (като низ) със съответния Command обект
      */
     private Map<String, Command> commandMap = new HashMap<>();
+    private Workbook workbook;
+    /** Текущата таблица, върху която работят командите. */
+    private Spreadsheet sheet;
+    private String sheetName;
+    /** Какво прави командата exit; null - спира програмата. */
+    private Runnable onExit;
 
 
-    public CommandProcessor(Spreadsheet sheet) {
-        commandMap.put("open", new OpenCommand(sheet));
-        commandMap.put("save", new SaveCommand(sheet));
-        commandMap.put("saveas", new SaveAsCommand(sheet));
-        commandMap.put("print", new PrintCommand(sheet));
-        commandMap.put("close", new CloseCommand(sheet));
-        commandMap.put("edit", new EditCommand(sheet));
-        commandMap.put("help", new HelpCommand());
-        commandMap.put("exit", new ExitCommand());
+    public CommandProcessor(Workbook workbook) {
+        this(workbook, null);
+    }
+
+    /**
+     * Създава обработчик, в който exit изпълнява onExit вместо да спира програмата
+     * (напр. затваря само връзката на клиент към сървъра).
+     */
+    public CommandProcessor(Workbook workbook, Runnable onExit) {
+        this.workbook = workbook;
+        this.onExit = onExit;
+        use(Workbook.DEFAULT_SHEET);
+    }
+
+    /**
+     * Прави таблицата с дадено име текуща, като я създава, ако няма такава.
+     * Връща true, ако таблицата е нова.
+     */
+    public boolean use(String name) {
+        boolean created = workbook.getSheet(name) == null;
+        Spreadsheet next = workbook.getOrCreateSheet(name);
+        if (next != sheet) {
+            // Създадените команди сочат към старата таблица
+            commandMap.clear();
+            sheet = next;
+            sheetName = name;
+        }
+        return created;
+    }
+
+    /**
+     * Връща името на текущата таблица.
+     */
+    public String getSheetName() {
+        return sheetName;
+    }
+
+    /**
+     * Връща работната книга.
+     */
+    public Workbook getWorkbook() {
+        return workbook;
     }
 
     /**
@@ -33,14 +78,70 @@ public class CommandProcessor {
      * Ако командата не е разпозната, извежда съобщение за грешка.
      */
     public void process(String input) {
-        String[] parts = input.trim().split(" ", 2);
-        String cmd = parts[0].toLowerCase();
-        String args = parts.length > 1 ? parts[1] : "";
+        process(input, System.out);
+    }
+
+    /**
+     * Изпълнява командата, като резултатът се извежда в out.
+     * Преди това съобщава в out неуспешните автоматични записи след предишната команда.
+     */
+    public void process(String input, PrintStream out) {
+        reportAutosaveFailures(out);
+        String line = input.trim();
+        int space = line.indexOf(' ');
+        String cmd = (space < 0 ? line : line.substring(0, space)).toLowerCase();
+        String args = space < 0 ? "" : line.substring(space + 1);
         Command command = commandMap.get(cmd);
+        if (command == null) {
+            command = create(cmd);
+            if (command != null) commandMap.put(cmd, command);
+        }
         if (command != null) {
-            command.execute(args);
+            command.execute(args, out);
         } else {
-            System.out.println("Unknown command: " + cmd);
+            out.println("Unknown command: " + cmd);
+        }
+    }
+
+    /** Извежда грешките при автоматичен запис на таблиците от книгата, които още не са съобщени. */
+    private void reportAutosaveFailures(PrintStream out) {
+        for (String name : workbook.getSheetNames()) {
+            Spreadsheet next = workbook.getSheet(name);
+            IOException failure = next != null ? next.takeAutosaveFailure() : null;
+            if (failure == null) continue;
+            if (next == sheet) {
+                out.println("Autosave failed: " + failure.getMessage());
+            } else {
+                out.println("Autosave of sheet " + name + " failed: " + failure.getMessage());
+            }
+        }
+    }
+
+    /** Създава командата с дадено име или връща null, ако няма такава. */
+    private Command create(String name) {
+        switch (name) {
+            case "open": return new OpenCommand(sheet);
+            case "save": return new SaveCommand(sheet);
+            case "saveas": return new SaveAsCommand(sheet);
+            case "print": return new PrintCommand(sheet);
+            case "close": return new CloseCommand(sheet);
+            case "edit": return new EditCommand(sheet);
+            case "undo": return new UndoCommand(sheet);
+            case "redo": return new RedoCommand(sheet);
+            case "autosave": return new AutosaveCommand(sheet);
+            case "memory": return new MemoryCommand(sheet);
+            case "analyze": return new AnalyzeCommand(sheet);
+            case "export": return new ExportCommand(sheet);
+            case "select": return new SelectCommand(sheet);
+            case "sort": return new SortCommand(sheet);
+            case "insertrow": return new InsertRowCommand(sheet);
+            case "deleterow": return new DeleteRowCommand(sheet);
+            case "insertcol": return new InsertColumnCommand(sheet);
+            case "deletecol": return new DeleteColumnCommand(sheet);
+            case "use": return new UseCommand(this);
+            case "help": return new HelpCommand();
+            case "exit": return new ExitCommand(onExit);
+            default: return null;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,26 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за отчет за таблицата: клетки и памет по тип, най-дългата верига
+ * от формули, най-реферираните клетки, най-дългите редове и най-тежките колони.
+ * Формат: analyze
+ */
+public class AnalyzeCommand implements Command {
+    private Spreadsheet sheet;
+
+    public AnalyzeCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        try {
+            sheet.analyze(out);
+        } catch (Exception e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+}
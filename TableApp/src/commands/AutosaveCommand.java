@@ -0,0 +1,38 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за настройване на автоматичния запис.
+ * Формат: autosave &lt;секунди&gt; [промени] или autosave off
+ */
+public class AutosaveCommand implements Command {
+    private Spreadsheet sheet;
+
+    public AutosaveCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        String trimmed = args.trim();
+        if (trimmed.equalsIgnoreCase("off")) {
+            sheet.disableAutosave();
+            out.println("Autosave disabled.");
+            return;
+        }
+        try {
+            String[] parts = trimmed.split(" ");
+            long seconds = Long.parseLong(parts[0]);
+            int changes = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            if (seconds < 0 || changes < 0 || (seconds == 0 && changes == 0)) {
+                throw new IllegalArgumentException();
+            }
+            sheet.enableAutosave(seconds, changes);
+            out.println("Autosave enabled.");
+        } catch (Exception e) {
+            out.println("Invalid input: autosave <seconds> [changes] | autosave off");
+        }
+    }
+}
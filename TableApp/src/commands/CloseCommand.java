@@ -2,6 +2,8 @@ package commands;
 
 import core.Spreadsheet;
 
+import java.io.PrintStream;
+
 /**
  * Команда за затваряне на таблицата.
  */
@@ -12,8 +14,8 @@ public class CloseCommand implements Command {
         this.sheet = sheet;
     }
 
-    public void execute(String args) {
+    public void execute(String args, PrintStream out) {
         sheet.close();
-        System.out.println("Closed.");
+        out.println("Closed.");
     }
 }
@@ -1,5 +1,7 @@
 package commands;
 
+import java.io.PrintStream;
+
 /**
  * Интерфейс за команди.
  */
@@ -7,6 +9,7 @@ public interface Command {
 
     /**
      * Изпълнява командата със зададени аргументи.
+     * Резултатът се извежда в out - конзолата или връзката на клиент.
      */
-    void execute(String args);
+    void execute(String args, PrintStream out);
 }
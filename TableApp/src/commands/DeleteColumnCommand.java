@@ -0,0 +1,33 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за изтриване на колона; следващите колони се изместват наляво.
+ * Формат: deletecol &lt;колона&gt;
+ */
+public class DeleteColumnCommand implements Command {
+    private Spreadsheet sheet;
+
+    public DeleteColumnCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        int index;
+        try {
+            index = Integer.parseInt(args.trim());
+        } catch (NumberFormatException e) {
+            out.println("Invalid input: deletecol <col>");
+            return;
+        }
+        try {
+            sheet.deleteColumn(index);
+            out.println("Column deleted.");
+        } catch (IndexOutOfBoundsException e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за изтриване на ред; следващите редове се изместват нагоре.
+ * Формат: deleterow &lt;ред&gt;
+ */
+public class DeleteRowCommand implements Command {
+    private Spreadsheet sheet;
+
+    public DeleteRowCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        int index;
+        try {
+            index = Integer.parseInt(args.trim());
+        } catch (NumberFormatException e) {
+            out.println("Invalid input: deleterow <row>");
+            return;
+        }
+        try {
+            sheet.deleteRow(index);
+            out.println("Row deleted.");
+        } catch (IndexOutOfBoundsException e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package commands;
 
 import core.Spreadsheet;
+
+import java.io.PrintStream;
 /**
  * Команда за редактиране на стойност в електронната таблица.
  */
@@ -9,16 +11,16 @@ public class EditCommand implements Command {
     public EditCommand(Spreadsheet sheet) {
         this.sheet = sheet;
     }
-    public void execute(String args) {
+    public void execute(String args, PrintStream out) {
         try {
             String[] parts = args.trim().split(" ", 3);
             int row = Integer.parseInt(parts[0]);
             int col = Integer.parseInt(parts[1]);
             String val = parts[2];
             sheet.edit(row, col, val);
-            System.out.println("Cell updated.");
+            out.println("Cell updated.");
         } catch (Exception e) {
-            System.out.println("Invalid input: row col \"value\"");
+            out.println("Invalid input: row col \"value\"");
         }
     }
 }
\ No newline at end of file
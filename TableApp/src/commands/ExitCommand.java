@@ -1,11 +1,29 @@
 package commands;
 
+import java.io.PrintStream;
+
 /**
  * Команда за изход.
+ * В конзолата спира програмата, а в сървъра затваря само връзката на клиента.
  */
 public class ExitCommand implements Command {
-    public void execute(String args) {
-        System.out.println("Bye!");
-        System.exit(0);
+    /** Какво прави командата след съобщението; null - спира програмата. */
+    private Runnable onExit;
+
+    public ExitCommand() {
+        this(null);
+    }
+
+    public ExitCommand(Runnable onExit) {
+        this.onExit = onExit;
+    }
+
+    public void execute(String args, PrintStream out) {
+        out.println("Bye!");
+        if (onExit != null) {
+            onExit.run();
+        } else {
+            System.exit(0);
+        }
     }
 }
@@ -0,0 +1,36 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за експортиране на изчислените стойности във файл.
+ * Формат: export &lt;tsv|jsonl|fixed&gt; &lt;файл&gt;
+ */
+public class ExportCommand implements Command {
+    private Spreadsheet sheet;
+
+    public ExportCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        String trimmed = args.trim();
+        int space = trimmed.indexOf(' ');
+        if (space < 0) {
+            out.println("Invalid input: export <tsv|jsonl|fixed> <file>");
+            return;
+        }
+        String format = trimmed.substring(0, space);
+        String file = trimmed.substring(space + 1).trim();
+        try {
+            int count = sheet.export(format, file);
+            out.println(count + " rows exported to: " + file);
+        } catch (IllegalArgumentException e) {
+            out.println("Invalid input: " + e.getMessage());
+        } catch (Exception e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+}
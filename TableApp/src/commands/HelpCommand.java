@@ -1,11 +1,13 @@
 package commands;
 
+import java.io.PrintStream;
+
 /**
  * Команда за показване на списък с налични команди.
  */
 public class HelpCommand implements Command {
 
-    public void execute(String args) {
-        System.out.println("Commands: open, save, saveas, close, print, edit, help, exit");
+    public void execute(String args, PrintStream out) {
+        out.println("Commands: open, save, saveas, export, close, print, select, sort, edit, insertrow, deleterow, insertcol, deletecol, undo, redo, autosave, memory, analyze, use, help, exit");
     }
 }
@@ -0,0 +1,33 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за вмъкване на празна колона; следващите колони се изместват надясно.
+ * Формат: insertcol &lt;колона&gt;
+ */
+public class InsertColumnCommand implements Command {
+    private Spreadsheet sheet;
+
+    public InsertColumnCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        int index;
+        try {
+            index = Integer.parseInt(args.trim());
+        } catch (NumberFormatException e) {
+            out.println("Invalid input: insertcol <col>");
+            return;
+        }
+        try {
+            sheet.insertColumn(index);
+            out.println("Column inserted.");
+        } catch (IndexOutOfBoundsException e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за вмъкване на празен ред; следващите редове се изместват надолу.
+ * Формат: insertrow &lt;ред&gt;
+ */
+public class InsertRowCommand implements Command {
+    private Spreadsheet sheet;
+
+    public InsertRowCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        int index;
+        try {
+            index = Integer.parseInt(args.trim());
+        } catch (NumberFormatException e) {
+            out.println("Invalid input: insertrow <row>");
+            return;
+        }
+        try {
+            sheet.insertRow(index);
+            out.println("Row inserted.");
+        } catch (IndexOutOfBoundsException e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за задаване на бюджет за памет на таблицата.
+ * Блоковете редове над бюджета се изнасят във временен файл.
+ * Формат: memory &lt;мегабайти&gt; или memory off
+ */
+public class MemoryCommand implements Command {
+    private Spreadsheet sheet;
+
+    public MemoryCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        String trimmed = args.trim();
+        if (trimmed.equalsIgnoreCase("off")) {
+            sheet.setMemoryBudget(0);
+            out.println("Memory limit disabled.");
+            return;
+        }
+        try {
+            long megabytes = Long.parseLong(trimmed);
+            if (megabytes <= 0) throw new IllegalArgumentException();
+            sheet.setMemoryBudget(megabytes << 20);
+            out.println("Memory limit set to " + megabytes + " MB.");
+        } catch (Exception e) {
+            out.println("Invalid input: memory <megabytes> | memory off");
+        }
+    }
+}
@@ -2,6 +2,8 @@ package commands;
 
 import core.Spreadsheet;
 
+import java.io.PrintStream;
+
 /**
  * Команда за отваряне на електронната таблица от файл.
  */
@@ -12,12 +14,12 @@ public class OpenCommand implements Command {
         this.sheet = sheet;
     }
 
-    public void execute(String args) {
+    public void execute(String args, PrintStream out) {
         try {
             sheet.loadFromFile(args);
-            System.out.println("Opened: " + args);
+            out.println("Opened: " + args);
         } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+            out.println("Error: " + e.getMessage());
         }
     }
 }
@@ -2,6 +2,8 @@ package commands;
 
 import core.Spreadsheet;
 
+import java.io.PrintStream;
+
 /**
  * Команда за отпечатване на електронната таблица.
  */
@@ -12,7 +14,7 @@ public class PrintCommand implements Command {
         this.sheet = sheet;
     }
 
-    public void execute(String args) {
-        sheet.print();
+    public void execute(String args, PrintStream out) {
+        sheet.print(out);
     }
 }
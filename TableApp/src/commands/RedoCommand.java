@@ -0,0 +1,24 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за повторно прилагане на отменена редакция.
+ */
+public class RedoCommand implements Command {
+    private Spreadsheet sheet;
+
+    public RedoCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        if (sheet.redo()) {
+            out.println("Redone.");
+        } else {
+            out.println("Nothing to redo.");
+        }
+    }
+}
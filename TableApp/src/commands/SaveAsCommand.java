@@ -2,6 +2,8 @@ package commands;
 
 import core.Spreadsheet;
 
+import java.io.PrintStream;
+
 /**
  * Команда за запазване на електронната таблица с ново име.
  */
@@ -12,12 +14,12 @@ public class SaveAsCommand implements Command {
         this.sheet = sheet;
     }
 
-    public void execute(String args) {
+    public void execute(String args, PrintStream out) {
         try {
             sheet.saveAs(args);
-            System.out.println("Saved as: " + args);
+            out.println("Saved as: " + args);
         } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+            out.println("Error: " + e.getMessage());
         }
     }
 }
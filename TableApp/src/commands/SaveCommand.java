@@ -2,6 +2,8 @@ package commands;
 
 import core.Spreadsheet;
 
+import java.io.PrintStream;
+
 /**
  * Команда за запазване на електронната таблица.
  */
@@ -12,12 +14,12 @@ public class SaveCommand implements Command {
         this.sheet = sheet;
     }
 
-    public void execute(String args) {
+    public void execute(String args, PrintStream out) {
         try {
             sheet.save();
-            System.out.println("Saved.");
+            out.println("Saved.");
         } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+            out.println("Error: " + e.getMessage());
         }
     }
 }
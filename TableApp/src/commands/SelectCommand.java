@@ -0,0 +1,40 @@
+package commands;
+
+import core.RowFilter;
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за извеждане на редовете, които отговарят на условие върху колона.
+ * Формат: select &lt;колона&gt; &lt;оператор&gt; &lt;стойност&gt; [файл]
+ */
+public class SelectCommand implements Command {
+    private Spreadsheet sheet;
+
+    public SelectCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        RowFilter filter;
+        String[] parts = args.trim().split(" ");
+        try {
+            filter = new RowFilter(Integer.parseInt(parts[0]), parts[1], parts[2]);
+        } catch (Exception e) {
+            out.println("Invalid input: select <col> <=|!=|<|<=|>|>=> <value> [file]");
+            return;
+        }
+        try {
+            if (parts.length > 3) {
+                int count = sheet.select(filter, parts[3]);
+                out.println(count + " rows written to: " + parts[3]);
+            } else {
+                int count = sheet.select(filter, out);
+                out.println(count + " rows.");
+            }
+        } catch (Exception e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+}
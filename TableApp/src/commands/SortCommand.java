@@ -0,0 +1,36 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за сортиране на редовете по колона.
+ * Формат: sort &lt;колона&gt; [asc|desc]
+ */
+public class SortCommand implements Command {
+    private Spreadsheet sheet;
+
+    public SortCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        try {
+            String[] parts = args.trim().split(" ");
+            int col = Integer.parseInt(parts[0]);
+            boolean descending = false;
+            if (parts.length > 1) {
+                if (parts[1].equalsIgnoreCase("desc")) {
+                    descending = true;
+                } else if (!parts[1].equalsIgnoreCase("asc")) {
+                    throw new IllegalArgumentException();
+                }
+            }
+            sheet.sort(col, descending);
+            out.println("Sorted.");
+        } catch (Exception e) {
+            out.println("Invalid input: sort <col> [asc|desc]");
+        }
+    }
+}
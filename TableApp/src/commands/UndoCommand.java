@@ -0,0 +1,24 @@
+package commands;
+
+import core.Spreadsheet;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за отменяне на последната редакция.
+ */
+public class UndoCommand implements Command {
+    private Spreadsheet sheet;
+
+    public UndoCommand(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    public void execute(String args, PrintStream out) {
+        if (sheet.undo()) {
+            out.println("Undone.");
+        } else {
+            out.println("Nothing to undo.");
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package commands;
+
+import cli.CommandProcessor;
+
+import java.io.PrintStream;
+
+/**
+ * Команда за смяна на текущата таблица в работната книга.
+ * Ако таблица с това име няма, се създава празна.
+ * Без аргумент извежда имената на таблиците, като текущата е отбелязана със *.
+ * Формат: use [име]
+ */
+public class UseCommand implements Command {
+    private CommandProcessor processor;
+
+    public UseCommand(CommandProcessor processor) {
+        this.processor = processor;
+    }
+
+    public void execute(String args, PrintStream out) {
+        String name = args.trim();
+        if (name.isEmpty()) {
+            StringBuilder line = new StringBuilder("Sheets:");
+            for (String sheet : processor.getWorkbook().getSheetNames()) {
+                line.append(' ').append(sheet);
+                if (sheet.equals(processor.getSheetName())) line.append('*');
+            }
+            out.println(line);
+            return;
+        }
+        try {
+            boolean created = processor.use(name);
+            out.println((created ? "Created sheet: " : "Using sheet: ") + name);
+        } catch (IllegalArgumentException e) {
+            out.println("Invalid input: use <name> (letters, digits and _)");
+        }
+    }
+}
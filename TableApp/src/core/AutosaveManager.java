@@ -0,0 +1,100 @@
+package core;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Клас, който записва таблицата автоматично на отделна нишка.
+ * Записът се стартира на определен интервал или след определен брой промени.
+ * Поредица от бързи редакции се обединява в един запис - докато има чакащ
+ * запис, нов не се добавя.
+ * Нишката за запис не пише в конзолата - последната грешка се пази и се
+ * съобщава от командите (вж. takeFailure).
+ */
+public class AutosaveManager {
+    private Spreadsheet sheet;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> periodicTask;
+    private volatile int changeThreshold;
+    private AtomicBoolean pending = new AtomicBoolean(false);
+    /** Грешката при последния неуспешен запис, ако още не е съобщена и няма успешен запис след нея. */
+    private final AtomicReference<IOException> lastFailure = new AtomicReference<>();
+
+    public AutosaveManager(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    /**
+     * Стартира автоматичния запис.
+     * intervalSeconds - интервал между записите (0 - без интервал)
+     * changeThreshold - брой незаписани промени, след които се записва веднага (0 - без праг)
+     */
+    public synchronized void start(long intervalSeconds, int changeThreshold) {
+        stop();
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "autosave");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.changeThreshold = changeThreshold;
+        if (intervalSeconds > 0) {
+            periodicTask = executor.scheduleWithFixedDelay(this::requestSave,
+                    intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Спира автоматичния запис. Запис, който вече е започнал, се довършва.
+     */
+    public synchronized void stop() {
+        changeThreshold = 0;
+        if (periodicTask != null) {
+            periodicTask.cancel(false);
+            periodicTask = null;
+        }
+    }
+
+    /**
+     * Извиква се след всяка промяна с броя незаписани промени.
+     */
+    public void onChange(long unsavedChanges) {
+        int threshold = changeThreshold;
+        if (threshold > 0 && unsavedChanges >= threshold) {
+            requestSave();
+        }
+    }
+
+    /** Добавя запис в опашката, освен ако вече има чакащ. */
+    private void requestSave() {
+        if (pending.compareAndSet(false, true)) {
+            executor.execute(this::runSave);
+        }
+    }
+
+    /** Изпълнява се на нишката за автоматичен запис. */
+    private void runSave() {
+        // Промени по време на записа ще поискат нов запис
+        pending.set(false);
+        try {
+            sheet.autosave();
+            lastFailure.set(null);
+        } catch (IOException e) {
+            lastFailure.set(e);
+        }
+    }
+
+    /**
+     * Връща грешката при последния неуспешен автоматичен запис и я забравя,
+     * така че да се съобщи само веднъж. Връща null, ако няма такава.
+     */
+    public IOException takeFailure() {
+        return lastFailure.getAndSet(null);
+    }
+}
@@ -16,15 +16,41 @@ public abstract class Cell {
     public abstract String getDisplay();
     public abstract double getValue();
 
+    /**
+     * Връща стойността, като препратките към други клетки се търсят в подадения източник.
+     * Само формулите зависят от източника.
+     */
+    public double getValue(CellSource source) {
+        return getValue();
+    }
+
+    /**
+     * Връща текста за показване, като препратките се търсят в подадения източник.
+     */
+    public String getDisplay(CellSource source) {
+        return getDisplay();
+    }
+
+    /**
+     * Създава нова клетка със същата стойност, която не е свързана с други клетки.
+     */
+    public abstract Cell copy();
+
+    /**
+     * Приблизителен размер на клетката в паметта (в байтове).
+     * Заглавие на обекта, препратка към следващата клетка и стойността.
+     */
+    public long estimateSize() {
+        return 24;
+    }
+
     /**
      * Създава подходящия тип клетка според подадения текст.
      */
     public static Cell createCell(String value, Object context) {
-        if (isInteger(value)) { // Ако е цяло число
-            return new IntegerCell(Integer.parseInt(value));
-        }
-        if (isDouble(value)) { // Ако е дробно число
-            return new DoubleCell(Double.parseDouble(value));
+        Cell number = NumberParser.parseCell(value); // Цяло или дробно число
+        if (number != null) {
+            return number;
         }
         if (value.startsWith("=")) { // Ако е формула
             if (context instanceof Spreadsheet) {
@@ -46,36 +72,4 @@ public abstract class Cell {
         // Всичко останало е текст
         return new StringCell(value);
     }
-
-    /** Проверява дали стрингът е валидно цяло число (с минус по избор). */
-    private static boolean isInteger(String s) {
-        if (s == null || s.isEmpty()) return false;
-        int start = (s.charAt(0) == '-') ? 1 : 0;
-        if (start == 1 && s.length() == 1) return false; //проверка за първия символ дали е -
-        for (int i = start; i < s.length(); i++) {
-            if (!Character.isDigit(s.charAt(i))) return false;
-        }
-        return true;
-    }
-
-    /** Проверява дали стрингът е валидно дробно число (с опционален минус и точно една точка). */
-    private static boolean isDouble(String s) {
-        if (s == null || s.isEmpty()) return false;
-        int start = (s.charAt(0) == '-') ? 1 : 0; //проверка за първия символ дали е -
-        boolean pointSeen = false;
-        int digits = 0;
-        for (int i = start; i < s.length(); i++) {
-            char c = s.charAt(i);
-            if (c == '.') {
-                if (pointSeen) return false; // повече от една точка
-                pointSeen = true;
-            } else if (Character.isDigit(c)) {
-                digits++;
-            } else {
-                return false;
-            }
-        }
-        return pointSeen && digits > 0;
-    }
 }
-
@@ -0,0 +1,38 @@
+package core;
+
+import java.util.Map;
+
+/**
+ * Източник на клетки по координати (ред и колона, започващи от 1).
+ * Формулите четат препратките си през него - от живата таблица или от снимка.
+ */
+public interface CellSource {
+
+    /**
+     * Връща клетка по координати или null, ако няма такава.
+     */
+    Cell getCell(int row, int col);
+
+    /**
+     * Връща първия ред (започващ от 1), в който колоната col съдържа ключа,
+     * или -1, ако няма такъв. Ключът е Double за числа или String за текст.
+     */
+    int findRow(int col, Object key);
+
+    /**
+     * Номер, по който формулите пазят изчислените си стойности за този източник,
+     * или 0, ако не трябва да се пазят. Различните източници имат различни номера.
+     */
+    default long cacheId() {
+        return 0;
+    }
+
+    /**
+     * Връща таблиците на работната книга по име, от които формулите четат
+     * препратки като Sheet2!R1C1, или null - тогава се четат живите таблици.
+     * Снимка на книгата връща снимките на всички таблици, взети в един момент.
+     */
+    default Map<String, ? extends CellSource> sheets() {
+        return null;
+    }
+}
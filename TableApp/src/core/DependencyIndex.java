@@ -0,0 +1,173 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Индекс на зависимостите между клетките: кои редове съдържат формули с
+ * препратки към даден ред или колона или след тях.
+ * При вмъкване или изтриване на ред/колона се преписват само формулите в
+ * редовете, които сочат към засегнатата част на таблицата, вместо да се
+ * обхождат всички формули.
+ *
+ * За всеки ред с формули се пазят само най-големият рефериран ред и колона
+ * (в самия ред), а редовете се групират по най-големия рефериран ред на
+ * кофи от по 1024 номера. Така индексът заема по един запис на ред с формули,
+ * а не по един на препратка. Стойностите може да са по-големи от истинските
+ * (след изтриване на формула) - това само добавя излишни редове за
+ * преглеждане и се поправя при следващото преписване на реда.
+ *
+ * Колоните в LOOKUP(ключ, Cc, Cr) също се броят за реферирани колони. Ред,
+ * чиито формули сочат само към колони, се пази в първата кофа (като ред 1),
+ * за да го намира holdersFromColumn.
+ *
+ * Редовете с препратки към други таблици (Sheet2!R1C1) се пазят отделно по
+ * име на таблицата, за да може работната книга да преномерира само тях, когато
+ * другата таблица се промени.
+ */
+public class DependencyIndex {
+    /** Номерата на редове в една кофа са 2^BUCKET_SHIFT. */
+    private static final int BUCKET_SHIFT = 10;
+
+    /** Кофа (най-голям рефериран ред >> BUCKET_SHIFT) -> редове с формули. */
+    private final NavigableMap<Integer, Set<Row>> buckets = new TreeMap<>();
+    /** Име на друга таблица -> редове с формули, които сочат към нея. */
+    private final Map<String, Set<Row>> sheets = new HashMap<>();
+
+    /**
+     * Записва нова формула в ред holder.
+     */
+    public synchronized void add(Row holder, FormulaCell formula) {
+        int[] refs = formula.getReferences();
+        int maxRow = holder.maxReferencedRow;
+        int maxCol = holder.maxReferencedColumn;
+        for (int i = 0; i < refs.length; i += 2) {
+            maxRow = Math.max(maxRow, refs[i]);
+            maxCol = Math.max(maxCol, refs[i + 1]);
+        }
+        for (int col : formula.getLookupColumns()) {
+            maxCol = Math.max(maxCol, col);
+        }
+        move(holder, maxCol > 0 ? Math.max(maxRow, 1) : maxRow);
+        holder.maxReferencedColumn = maxCol;
+        for (String sheet : formula.getSheetNames()) {
+            sheets.computeIfAbsent(sheet, k -> new HashSet<>()).add(holder);
+        }
+    }
+
+    /**
+     * Изчислява наново препратките от всички формули в ред holder.
+     */
+    public synchronized void update(Row holder) {
+        int maxRow = 0;
+        int maxCol = 0;
+        List<String> names = new ArrayList<>(0);
+        for (Cell cell = holder.getFirstCell(); cell != null; cell = cell.getNextCell()) {
+            if (!(cell instanceof FormulaCell)) continue;
+            FormulaCell formula = (FormulaCell) cell;
+            int[] refs = formula.getReferences();
+            for (int i = 0; i < refs.length; i += 2) {
+                maxRow = Math.max(maxRow, refs[i]);
+                maxCol = Math.max(maxCol, refs[i + 1]);
+            }
+            for (int col : formula.getLookupColumns()) {
+                maxCol = Math.max(maxCol, col);
+            }
+            if (formula.getFormula().indexOf('!') >= 0) names.addAll(formula.getSheetNames());
+        }
+        move(holder, maxCol > 0 ? Math.max(maxRow, 1) : maxRow);
+        holder.maxReferencedColumn = maxCol;
+        if (!names.isEmpty() || !sheets.isEmpty()) {
+            removeFromSheets(holder);
+            for (String sheet : names) {
+                sheets.computeIfAbsent(sheet, k -> new HashSet<>()).add(holder);
+            }
+        }
+    }
+
+    /**
+     * Премахва ред от индекса (напр. при изтриване на реда).
+     */
+    public synchronized void removeRow(Row holder) {
+        move(holder, 0);
+        holder.maxReferencedColumn = 0;
+        removeFromSheets(holder);
+    }
+
+    /**
+     * Връща редовете с формули, които може да сочат към ред с номер row или след него.
+     * Всеки ред е в точно една кофа, затова не се повтаря.
+     */
+    public synchronized List<Row> holdersFromRow(int row) {
+        List<Row> holders = new ArrayList<>();
+        for (Set<Row> bucket : buckets.tailMap(row >> BUCKET_SHIFT, true).values()) {
+            for (Row holder : bucket) {
+                if (holder.maxReferencedRow >= row) holders.add(holder);
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * Връща редовете с формули, които може да сочат към колона с номер col или след нея.
+     * Колоните са малко, затова тук се преглеждат всички редове с формули.
+     */
+    public synchronized List<Row> holdersFromColumn(int col) {
+        List<Row> holders = new ArrayList<>();
+        for (Set<Row> bucket : buckets.values()) {
+            for (Row holder : bucket) {
+                if (holder.maxReferencedColumn >= col) holders.add(holder);
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * Връща редовете с формули, които сочат към таблица с дадено име.
+     */
+    public synchronized List<Row> holdersOfSheet(String sheet) {
+        Set<Row> holders = sheets.get(sheet);
+        return holders != null ? new ArrayList<>(holders) : new ArrayList<>();
+    }
+
+    /**
+     * Изчиства индекса. Стойностите в редовете се презаписват при следващото построяване.
+     */
+    public synchronized void clear() {
+        buckets.clear();
+        sheets.clear();
+    }
+
+    /** Премахва реда от списъците по име на таблица. */
+    private void removeFromSheets(Row holder) {
+        Iterator<Set<Row>> it = sheets.values().iterator();
+        while (it.hasNext()) {
+            Set<Row> holders = it.next();
+            holders.remove(holder);
+            if (holders.isEmpty()) it.remove();
+        }
+    }
+
+    /** Премества реда в кофата за нов най-голям рефериран ред (0 - без формули). */
+    private void move(Row holder, int maxRow) {
+        int old = holder.maxReferencedRow;
+        if (old > 0 && (maxRow == 0 || old >> BUCKET_SHIFT != maxRow >> BUCKET_SHIFT)) {
+            Set<Row> bucket = buckets.get(old >> BUCKET_SHIFT);
+            if (bucket != null) {
+                bucket.remove(holder);
+                if (bucket.isEmpty()) buckets.remove(old >> BUCKET_SHIFT);
+            }
+        }
+        if (maxRow > 0) {
+            buckets.computeIfAbsent(maxRow >> BUCKET_SHIFT, k -> new HashSet<>()).add(holder);
+        }
+        holder.maxReferencedRow = maxRow;
+    }
+}
@@ -1,5 +1,7 @@
 package core;
 
+import java.io.PrintStream;
+
 /**
  * Клас, който управлява показването на електронната таблица.
  * Отговаря за форматирането и визуализацията.
@@ -16,23 +18,20 @@ public class DisplayManager {
      * Форматира изхода в табличен вид, подравнен по най-дългия ред.
      */
     public void print() {
-        int height = tableManager.getActualHeight();
-        int width = tableManager.getActualWidth();
+        print(tableManager.snapshot(), System.out);
+    }
+
+    /**
+     * Отпечатва съдържанието на дадена снимка на таблицата в подадения поток.
+     */
+    public void print(TableSnapshot snapshot, PrintStream out) {
+        int height = snapshot.getHeight();
+        int width = snapshot.getWidth();
 
-        Row currentRow = tableManager.getFirstRow();
         for (int r = 0; r < height; r++) {
             StringBuilder sb = new StringBuilder();
-            Cell currentCell = currentRow != null ? currentRow.getFirstCell() : null;
-            for (int c = 0; c < width; c++) {
-                String displayValue = "";
-                if (currentCell != null) {
-                    displayValue = currentCell.getDisplay();
-                }
-                sb.append(String.format("%-15s|", displayValue));
-                currentCell = currentCell != null ? currentCell.getNextCell() : null;
-            }
-            System.out.println(sb);
-            currentRow = currentRow != null ? currentRow.getNextRow() : null;
+            appendRow(sb, snapshot, snapshot.getFirstCell(r), width);
+            out.println(sb);
         }
     }
 
@@ -41,23 +40,27 @@ public class DisplayManager {
      */
     public String getFormattedTable() {
         StringBuilder sb = new StringBuilder();
-        int height = tableManager.getActualHeight();
-        int width = tableManager.getActualWidth();
+        TableSnapshot snapshot = tableManager.snapshot();
+        int height = snapshot.getHeight();
+        int width = snapshot.getWidth();
 
-        Row currentRow = tableManager.getFirstRow();
         for (int r = 0; r < height; r++) {
-            Cell currentCell = currentRow != null ? currentRow.getFirstCell() : null;
-            for (int c = 0; c < width; c++) {
-                String displayValue = "";
-                if (currentCell != null) {
-                    displayValue = currentCell.getDisplay();
-                }
-                sb.append(String.format("%-15s|", displayValue));
-                currentCell = currentCell != null ? currentCell.getNextCell() : null;
-            }
+            appendRow(sb, snapshot, snapshot.getFirstCell(r), width);
             sb.append("\n");
-            currentRow = currentRow != null ? currentRow.getNextRow() : null;
         }
         return sb.toString();
     }
+
+    /** Добавя един ред, подравнен до дадената ширина. */
+    static void appendRow(StringBuilder sb, TableSnapshot snapshot, Cell firstCell, int width) {
+        Cell currentCell = firstCell;
+        for (int c = 0; c < width; c++) {
+            String displayValue = "";
+            if (currentCell != null) {
+                displayValue = currentCell.getDisplay(snapshot);
+            }
+            sb.append(String.format("%-15s|", displayValue));
+            currentCell = currentCell != null ? currentCell.getNextCell() : null;
+        }
+    }
 }
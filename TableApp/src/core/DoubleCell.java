@@ -25,4 +25,9 @@ public class DoubleCell extends Cell {
     public double getValue() {
         return value;
     }
+
+    @Override
+    public Cell copy() {
+        return new DoubleCell(value);
+    }
 }
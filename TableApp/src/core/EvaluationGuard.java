@@ -0,0 +1,75 @@
+package core;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Пази клетките, които текущата нишка изчислява в момента, и колоните,
+ * чиито индекси за LOOKUP строи. Така се откриват и непреки цикли
+ * (напр. LOOKUP в колона 1 търси в колона 2, а формула в колона 2 търси
+ * в колона 1, или цикъл през друга таблица): повторно срещната клетка
+ * дава грешка вместо безкрайна рекурсия.
+ */
+final class EvaluationGuard {
+    /** Клетките и колоните (с ред 0) в процес на изчисляване за всяка нишка. */
+    private static final ThreadLocal<Set<Key>> ACTIVE = ThreadLocal.withInitial(HashSet::new);
+
+    private EvaluationGuard() {
+    }
+
+    /**
+     * Изчислява стойността на клетката на ред row и колона col (започващи от 1)
+     * в източника source. Ако формулата ѝ вече се изчислява от тази нишка, връща NaN (ERROR).
+     */
+    static double value(Cell cell, CellSource source, int row, int col) {
+        if (!(cell instanceof FormulaCell) || ((FormulaCell) cell).isCached(source)) {
+            return cell.getValue(source);
+        }
+        Key key = new Key(source, row, col);
+        Set<Key> active = ACTIVE.get();
+        if (!active.add(key)) return Double.NaN;
+        try {
+            return cell.getValue(source);
+        } finally {
+            active.remove(key);
+        }
+    }
+
+    /**
+     * Отбелязва, че се строи индексът на колона col (започваща от 1) в source.
+     * Връща false, ако тази нишка вече го строи - тогава търсенето е цикъл.
+     */
+    static boolean enterColumn(CellSource source, int col) {
+        return ACTIVE.get().add(new Key(source, 0, col));
+    }
+
+    /** Отбелязва, че индексът на колоната е построен. */
+    static void exitColumn(CellSource source, int col) {
+        ACTIVE.get().remove(new Key(source, 0, col));
+    }
+
+    /** Клетка (или колона при ред 0) в даден източник; източниците се сравняват по идентичност. */
+    private static final class Key {
+        private final CellSource source;
+        private final int row;
+        private final int col;
+
+        Key(CellSource source, int row, int col) {
+            this.source = source;
+            this.row = row;
+            this.col = col;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return source == key.source && row == key.row && col == key.col;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(source) * 31 + row) * 31 + col;
+        }
+    }
+}
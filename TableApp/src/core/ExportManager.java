@@ -0,0 +1,106 @@
+package core;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Клас, който експортира таблицата във файл в избран формат (tsv, jsonl, fixed).
+ * Редовете на снимката се превръщат в текст на порции от по CHUNK_ROWS реда
+ * и всяка порция се записва веднага в буфериран поток, така че в паметта
+ * никога няма текста на цялата таблица. При много редове няколко порции
+ * се подготвят паралелно, а записът запазва реда на таблицата.
+ */
+public class ExportManager {
+    /** Брой редове в една порция. */
+    private static final int CHUNK_ROWS = 1024;
+    /** Под този брой редове порциите се подготвят в една нишка. */
+    private static final int PARALLEL_THRESHOLD = 10000;
+    /** Размер на буфера на изходния поток в знаци. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Име на формат -> създава нов обект за записа. */
+    private static final Map<String, Supplier<RowWriter>> FORMATS = new ConcurrentHashMap<>();
+
+    static {
+        registerFormat("tsv", TsvRowWriter::new);
+        registerFormat("jsonl", JsonLinesRowWriter::new);
+        registerFormat("fixed", FixedWidthRowWriter::new);
+    }
+
+    /**
+     * Добавя формат за експортиране (или заменя съществуващ със същото име).
+     */
+    public static void registerFormat(String name, Supplier<RowWriter> factory) {
+        FORMATS.put(name.toLowerCase(), factory);
+    }
+
+    /**
+     * Връща имената на наличните формати по азбучен ред.
+     */
+    public static Set<String> getFormats() {
+        return new TreeSet<>(FORMATS.keySet());
+    }
+
+    /**
+     * Записва снимката във файл в дадения формат. Връща броя на записаните редове.
+     * При непознат формат хвърля IllegalArgumentException.
+     */
+    public int export(TableSnapshot snapshot, String format, String filePath) throws IOException {
+        Supplier<RowWriter> factory = FORMATS.get(format.toLowerCase());
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown format: " + format
+                    + " (available: " + String.join(", ", getFormats()) + ")");
+        }
+        RowWriter rowWriter = factory.get();
+        rowWriter.prepare(snapshot);
+
+        int height = snapshot.getHeight();
+        int chunks = (height + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        int wave = height >= PARALLEL_THRESHOLD ? Runtime.getRuntime().availableProcessors() : 1;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(filePath), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            StringBuilder[] rendered = new StringBuilder[wave];
+            char[] chars = new char[0];
+            for (int first = 0; first < chunks; first += wave) {
+                int start = first;
+                int count = Math.min(wave, chunks - first);
+                IntStream parts = IntStream.range(0, count);
+                if (count > 1) {
+                    parts = parts.parallel();
+                }
+                parts.forEach(i -> rendered[i] = render(rowWriter, snapshot, start + i, rendered[i]));
+                for (int i = 0; i < count; i++) {
+                    int length = rendered[i].length();
+                    if (chars.length < length) chars = new char[length];
+                    rendered[i].getChars(0, length, chars, 0);
+                    out.write(chars, 0, length);
+                }
+            }
+        }
+        return height;
+    }
+
+    /** Превръща една порция редове в текст; буферът от предишната порция се използва повторно. */
+    private static StringBuilder render(RowWriter rowWriter, TableSnapshot snapshot, int chunk, StringBuilder sb) {
+        if (sb == null) {
+            sb = new StringBuilder(CHUNK_ROWS * 64);
+        } else {
+            sb.setLength(0);
+        }
+        int end = Math.min(snapshot.getHeight(), (chunk + 1) * CHUNK_ROWS);
+        for (int r = chunk * CHUNK_ROWS; r < end; r++) {
+            rowWriter.appendRow(sb, snapshot, snapshot.getFirstCell(r));
+        }
+        return sb;
+    }
+}
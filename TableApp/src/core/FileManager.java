@@ -1,43 +1,190 @@
 package core;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Клас, който управлява файловите операции за електронната таблица.
  * Отговаря за зареждане и записване на данни.
  */
 public class FileManager {
-    private String currentFile = null;
+    /** Под този размер на част файлът се парсва в една нишка. */
+    private static final long MIN_CHUNK_BYTES = 1L << 20;
+    /** Най-голямата част, която се чете в паметта наведнъж. */
+    private static final long MAX_CHUNK_BYTES = 4L << 20;
+
+    private volatile String currentFile = null;
     private TableManager tableManager;
+    /** Таблицата, към която сочат формулите от заредения файл. */
+    private Object cellContext;
+    /** Не позволява два записа (ръчен и автоматичен) да пишат едновременно. */
+    private final Object writeLock = new Object();
+    /** Файл (абсолютен път) -> версията на таблицата, последно записана в него. */
+    private final Map<Path, Long> writtenVersions = new HashMap<>();
 
     public FileManager(TableManager tableManager) {
         this.tableManager = tableManager;
+        this.cellContext = tableManager;
+    }
+
+    /**
+     * Създава мениджър, чиито заредени формули сочат към дадената таблица.
+     */
+    public FileManager(TableManager tableManager, Spreadsheet spreadsheet) {
+        this.tableManager = tableManager;
+        this.cellContext = spreadsheet;
     }
 
     /**
      * Зарежда таблица от файл, като презаписва текущото съдържание.
+     * Големите файлове се разделят на части по границите на редовете,
+     * които се парсват паралелно и се свързват по ред в таблицата.
+     * Частите се обработват на вълни, колкото са ядрата, като след всяка вълна
+     * таблицата може да изнесе блокове над бюджета си за памет, така че
+     * файлът не трябва да се побира в паметта наведнъж.
      */
     public void loadFromFile(String filePath) throws IOException {
         tableManager.clear(); // Ресетва таблицата
         currentFile = filePath;
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            int rowIdx = 0;
-            while ((line = reader.readLine()) != null) {
-                String[] tokens = line.split(",", -1);
-
-                tableManager.addRow();
-                Row currentRow = tableManager.getRow(rowIdx);
-                for (int colIdx = 0; colIdx < tokens.length; colIdx++) {
-                    String token = tokens[colIdx].trim();
-                    currentRow.addCell(Cell.createCell(token, tableManager));
+        try (FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) return;
+
+            long[] bounds = splitAtLines(channel, size, chunkCount(size));
+            int epoch = tableManager.getEpoch();
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            for (int first = 0; first + 1 < bounds.length; first += parallelism) {
+                int last = Math.min(first + parallelism, bounds.length - 1);
+                List<Future<List<Row>>> blocks;
+                if (last - first == 1) {
+                    blocks = List.of(CompletableFuture.completedFuture(
+                            parseChunk(channel, bounds[first], bounds[last], epoch)));
+                } else {
+                    List<Callable<List<Row>>> tasks = new ArrayList<>();
+                    for (int i = first; i < last; i++) {
+                        long from = bounds[i];
+                        long to = bounds[i + 1];
+                        tasks.add(() -> parseChunk(channel, from, to, epoch));
+                    }
+                    blocks = ForkJoinPool.commonPool().invokeAll(tasks);
+                }
+                for (Future<List<Row>> future : blocks) {
+                    tableManager.appendRows(future.get());
                 }
-                rowIdx++;
+                tableManager.trim();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Loading interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot parse " + filePath, e.getCause());
         }
     }
 
+    /** Брой части, на които се разделя файл с даден размер. */
+    private int chunkCount(long size) {
+        int byCores = Runtime.getRuntime().availableProcessors();
+        int bySize = (int) Math.max(1, size / MIN_CHUNK_BYTES);
+        int byLimit = (int) ((size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+        return Math.max(Math.min(byCores, bySize), byLimit);
+    }
+
+    /**
+     * Разделя файла на приблизително равни части, като всяка граница
+     * се мести точно след следващия символ за нов ред.
+     */
+    private long[] splitAtLines(FileChannel channel, long size, int chunks) throws IOException {
+        long[] bounds = new long[chunks + 1];
+        ByteBuffer window = ByteBuffer.allocate(8192);
+        int count = 1;
+        for (int i = 1; i < chunks; i++) {
+            long pos = Math.max(size * i / chunks, bounds[count - 1]);
+            pos = nextLineStart(channel, pos, size, window);
+            if (pos >= size) break;
+            bounds[count++] = pos;
+        }
+        bounds[count++] = size;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    /** Връща позицията след първия символ за нов ред от pos нататък (или size). */
+    private long nextLineStart(FileChannel channel, long pos, long size, ByteBuffer window) throws IOException {
+        while (pos < size) {
+            window.clear();
+            int read = channel.read(window, pos);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (window.get(i) == '\n') return pos + i + 1;
+            }
+            pos += read;
+        }
+        return size;
+    }
+
+    /** Прочита частта [from, to) от файла и я парсва в редове. */
+    private List<Row> parseChunk(FileChannel channel, long from, long to, int epoch) throws IOException {
+        return parseBlock(channel.map(FileChannel.MapMode.READ_ONLY, from, to - from), epoch);
+    }
+
+    /**
+     * Парсва една част от файла в редове.
+     * Редовете завършват с \n или \r\n, както при BufferedReader.readLine().
+     */
+    private List<Row> parseBlock(ByteBuffer chunk, int epoch) {
+        CharBuffer text = Charset.defaultCharset().decode(chunk);
+        List<Row> block = new ArrayList<>();
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && text.charAt(end) != '\n') {
+                end++;
+            }
+            int lineEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+            block.add(parseRow(text.subSequence(start, lineEnd).toString(), epoch));
+            start = end + 1;
+        }
+        return block;
+    }
+
+    /** Създава ред от един ред на файла. */
+    private Row parseRow(String line, int epoch) {
+        String[] tokens = line.split(",", -1);
+        Row row = new Row(epoch);
+        Cell last = null;
+        for (String token : tokens) {
+            Cell cell = Cell.createCell(token.trim(), cellContext);
+            if (last == null) {
+                row.setFirstCell(cell);
+            } else {
+                last.setNextCell(cell);
+            }
+            last = cell;
+        }
+        return row;
+    }
+
     /**
      * Записва текущата таблица във файла, от който е заредена.
      */
@@ -48,29 +195,103 @@ public class FileManager {
 
     /**
      * Записва текущата таблица в нов файл.
+     * Записът работи върху снимка, така че не вижда редакции, направени по време на записа.
      */
     public void saveAs(String filePath) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-            Row currentRow = tableManager.getFirstRow();
-            while (currentRow != null) {
-                Cell currentCell = currentRow.getFirstCell();
-                while (currentCell != null) {
-                    String value = currentCell.getDisplay();
-                    if (value.contains(",") || value.contains("\"")) {
-                        value = value.replace("\\", "\\\\").replace("\"", "\\\"");
-                        value = "\"" + value + "\"";
-                    }
-                    writer.write(value);
-                    if (currentCell.getNextCell() != null) {
-                        writer.write(", ");
-                    }
-                    currentCell = currentCell.getNextCell();
+        writeSnapshot(tableManager.snapshot(), filePath, -1);
+        currentFile = filePath;
+    }
+
+    /**
+     * Записва дадена снимка на таблицата във файл.
+     * Може да се извиква от друга нишка, защото снимката не се променя.
+     * version е броят промени в таблицата към момента на снимката (-1 - без версия).
+     * Снимките се взимат под заключване, но се пишат след него, затова по-стара
+     * снимка (напр. от автоматичния запис) може да стигне дотук след по-нова.
+     * Такъв запис се пропуска, за да не замени по-новите данни във файла.
+     * Връща false, ако записът е пропуснат.
+     */
+    public boolean writeSnapshot(TableSnapshot snapshot, String filePath, long version) throws IOException {
+        Path target = Paths.get(filePath).toAbsolutePath().normalize();
+        synchronized (writeLock) {
+            Long written = writtenVersions.get(target);
+            if (version >= 0 && written != null && version < written) {
+                return false;
+            }
+            writeRows(snapshot, filePath);
+            if (version >= 0) {
+                writtenVersions.put(target, version);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Записва редовете на снимката във временен файл в същата папка и после
+     * го премества на мястото на файла с една атомарна операция. Така прекъснат
+     * запис (напр. exit по време на автоматичен запис) не оставя отрязан файл.
+     * Временният файл има уникално име, за да не замени файл на потребителя
+     * или временния файл на друг едновременен запис в същия файл.
+     */
+    private void writeRows(TableSnapshot snapshot, String filePath) throws IOException {
+        Path target = Paths.get(filePath).toAbsolutePath();
+        Path temp = createTemp(target);
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, Charset.defaultCharset())) {
+                for (int r = 0; r < snapshot.getHeight(); r++) {
+                    writeRow(writer, snapshot, snapshot.getFirstCell(r));
                 }
-                writer.newLine();
-                currentRow = currentRow.getNextRow();
             }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
         }
-        currentFile = filePath;
+    }
+
+    /**
+     * Създава временния файл до target. Временните файлове иначе са достъпни
+     * само за собственика, затова нов файл получава обичайните права
+     * (rw-rw-rw- без umask), а при замяна - правата на стария файл.
+     */
+    private static Path createTemp(Path target) throws IOException {
+        Path dir = target.getParent();
+        String prefix = target.getFileName() + ".";
+        if (!target.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return Files.createTempFile(dir, prefix, ".tmp");
+        }
+        Path temp = Files.createTempFile(dir, prefix, ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-rw-rw-")));
+        try {
+            if (Files.exists(target)) {
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return temp;
+    }
+
+    /** Записва един ред във формата на файла, като стойностите със запетаи или кавички се ограждат в кавички. */
+    static void writeRow(BufferedWriter writer, CellSource source, Cell firstCell) throws IOException {
+        Cell currentCell = firstCell;
+        while (currentCell != null) {
+            String value = currentCell.getDisplay(source);
+            if (value.contains(",") || value.contains("\"")) {
+                value = value.replace("\\", "\\\\").replace("\"", "\\\"");
+                value = "\"" + value + "\"";
+            }
+            writer.write(value);
+            if (currentCell.getNextCell() != null) {
+                writer.write(", ");
+            }
+            currentCell = currentCell.getNextCell();
+        }
+        writer.newLine();
     }
 
     /**
@@ -80,6 +301,13 @@ public class FileManager {
         return currentFile;
     }
 
+    /**
+     * Задава текущия файл.
+     */
+    public void setCurrentFile(String filePath) {
+        currentFile = filePath;
+    }
+
     /**
      * Изчиства текущия файл.
      */
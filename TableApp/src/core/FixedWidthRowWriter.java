@@ -0,0 +1,48 @@
+package core;
+
+import java.util.Arrays;
+
+/**
+ * Експортиране с фиксирана ширина: всяка колона е допълнена с интервали
+ * до най-дългата стойност в нея, а колоните са разделени с един интервал.
+ * Ширините се изчисляват с едно обхождане преди записа. Табулация, нов ред и
+ * обратна наклонена черта се записват като в TSV (\t, \n, \\), за да не
+ * разместват колоните.
+ */
+public class FixedWidthRowWriter implements RowWriter {
+    private int[] widths;
+
+    @Override
+    public void prepare(TableSnapshot snapshot) {
+        widths = new int[0];
+        for (int r = 0; r < snapshot.getHeight(); r++) {
+            int c = 0;
+            for (Cell cell = snapshot.getFirstCell(r); cell != null; cell = cell.getNextCell(), c++) {
+                if (c == widths.length) widths = Arrays.copyOf(widths, Math.max(4, c * 2));
+                widths[c] = Math.max(widths[c], TsvRowWriter.escapedLength(cell.getDisplay(snapshot)));
+            }
+        }
+        int used = widths.length;
+        while (used > 0 && widths[used - 1] == 0) used--;
+        widths = Arrays.copyOf(widths, used);
+    }
+
+    @Override
+    public void appendRow(StringBuilder sb, TableSnapshot snapshot, Cell firstCell) {
+        Cell cell = firstCell;
+        for (int c = 0; c < widths.length; c++) {
+            if (c > 0) sb.append(' ');
+            int length = 0;
+            if (cell != null) {
+                int start = sb.length();
+                TsvRowWriter.appendEscaped(sb, cell.getDisplay(snapshot));
+                length = sb.length() - start;
+                cell = cell.getNextCell();
+            }
+            for (int i = length; i < widths[c]; i++) {
+                sb.append(' ');
+            }
+        }
+        sb.append('\n');
+    }
+}
@@ -1,13 +1,31 @@
 package core;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+
 /**
  * Класът FormulaCell представлява клетка, която съдържа формула.
  * Формулата може да бъде проста аритметична операция между две стойности
  * (числа или препратки към други клетки) или една стойност.
+ * Поддържа се и функцията LOOKUP(ключ, C&lt;търсена колона&gt;, C&lt;колона на резултата&gt;),
+ * която връща стойността от първия ред, в който търсената колона съдържа ключа.
+ * Препратка с име на таблица (Sheet2!R1C1) чете клетка от друга таблица в работната книга.
  */
 public class FormulaCell extends Cell {
+    /** Текстът, с който се заменя препратка към изтрит ред или колона. */
+    public static final String REF_ERROR = "#REF";
+
+    /** Брояч за номерата на източниците (вж. CellSource.cacheId). */
+    private static final AtomicLong CACHE_IDS = new AtomicLong();
+
     private String formula;
     private Spreadsheet spreadsheet;
+    /** Последната изчислена стойност и за кой източник и версия на данните важи. */
+    private volatile CachedValue cached;
 
     /**
      * formula - формулата, която тази клетка ще изчислява (напр. "=R1C1 + R2C2")
@@ -26,12 +44,297 @@ public class FormulaCell extends Cell {
      */
     @Override
     public String getDisplay() {
-        double result = getValue();
+        return getDisplay(spreadsheet);
+    }
+
+    /**
+     * Връща стойността за показване, като препратките се търсят в подадения източник.
+     */
+    @Override
+    public String getDisplay(CellSource source) {
+        double result = getValue(source);
         if (Double.isNaN(result)) return "ERROR";
         if (result == (long) result) return "" + (long) result;
         return "" + result;
     }
 
+    /**
+     * Връща текста на формулата (напр. "=R1C1 + R2C2").
+     */
+    public String getFormula() {
+        return formula;
+    }
+
+    /**
+     * Размерът включва и текста на формулата.
+     */
+    @Override
+    public long estimateSize() {
+        return 32 + 40 + formula.length();
+    }
+
+    @Override
+    public Cell copy() {
+        return new FormulaCell(formula, spreadsheet);
+    }
+
+    /**
+     * Връща препратките R&lt;n&gt;C&lt;m&gt; без име на таблица във формулата като двойки
+     * {ред, колона, ред, колона, ...} (номерата са 1-базирани).
+     */
+    public int[] getReferences() {
+        return getReferences(null);
+    }
+
+    /**
+     * Връща препратките към таблица с име sheet (sheet!R&lt;n&gt;C&lt;m&gt;) като двойки
+     * {ред, колона, ...}. При sheet null връща препратките без име на таблица.
+     */
+    public int[] getReferences(String sheet) {
+        int[] refs = new int[4];
+        int count = 0;
+        int length = formula.length();
+        int i = 0;
+        while (i < length) {
+            int end = referenceEnd(i, formula);
+            if (end < 0) {
+                i++;
+                continue;
+            }
+            if (!inSheet(formula, i, sheet)) {
+                i = end;
+                continue;
+            }
+            int cIndex = formula.indexOf('C', i);
+            int r = NumberParser.parseIndex(formula, i + 1, cIndex);
+            int c = NumberParser.parseIndex(formula, cIndex + 1, end);
+            if (r >= 0 && c >= 0) {
+                if (count + 2 > refs.length) refs = Arrays.copyOf(refs, refs.length * 2);
+                refs[count++] = r;
+                refs[count++] = c;
+            }
+            i = end;
+        }
+        return count == refs.length ? refs : Arrays.copyOf(refs, count);
+    }
+
+    /**
+     * Връща имената на другите таблици, към които сочи формулата (без повторения).
+     */
+    public List<String> getSheetNames() {
+        List<String> names = new ArrayList<>(1);
+        int i = 0;
+        while (i < formula.length()) {
+            int end = referenceEnd(i, formula);
+            if (end < 0) {
+                i++;
+                continue;
+            }
+            int start = sheetStart(formula, i);
+            if (start < i) {
+                String name = formula.substring(start, i - 1);
+                if (!names.contains(name)) names.add(name);
+            }
+            i = end;
+        }
+        return names;
+    }
+
+    /**
+     * Връща клетка със същата формула, в която номерата в препратките R&lt;n&gt;C&lt;m&gt;
+     * са заменени чрез rowMap и colMap (номерата са 1-базирани).
+     * Ако rowMap или colMap върне число, по-малко от 1, препратката се заменя с #REF.
+     * Ако нито една препратка не се променя, връща същата клетка.
+     */
+    public FormulaCell remapReferences(IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        return remapReferences(null, rowMap, colMap);
+    }
+
+    /**
+     * Като remapReferences(rowMap, colMap), но само за препратките към таблица
+     * с име sheet (sheet!R&lt;n&gt;C&lt;m&gt;). При #REF се заменя и името на таблицата.
+     */
+    public FormulaCell remapReferences(String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        StringBuilder sb = null;
+        int copied = 0;
+        int length = formula.length();
+        int i = 0;
+        while (i < length) {
+            int end = referenceEnd(i, formula);
+            if (end < 0) {
+                i++;
+                continue;
+            }
+            if (!inSheet(formula, i, sheet)) {
+                i = end;
+                continue;
+            }
+            int cIndex = formula.indexOf('C', i);
+            int r = NumberParser.parseIndex(formula, i + 1, cIndex);
+            int c = NumberParser.parseIndex(formula, cIndex + 1, end);
+            if (r >= 0 && c >= 0) {
+                int newRow = rowMap.applyAsInt(r);
+                int newCol = colMap.applyAsInt(c);
+                if (newRow != r || newCol != c) {
+                    if (sb == null) sb = new StringBuilder(length + 8);
+                    if (newRow < 1 || newCol < 1) {
+                        sb.append(formula, copied, sheetStart(formula, i));
+                        sb.append(REF_ERROR);
+                    } else {
+                        sb.append(formula, copied, i);
+                        sb.append('R').append(newRow).append('C').append(newCol);
+                    }
+                    copied = end;
+                }
+            }
+            i = end;
+        }
+        String result = formula;
+        if (sb != null) {
+            sb.append(formula, copied, length);
+            result = sb.toString();
+        }
+        if (sheet == null) {
+            // Колоните Cc в LOOKUP са от същата таблица като формулата
+            String remapped = remapLookupColumns(result, colMap);
+            if (remapped != null) result = remapped;
+        }
+        return result == formula ? this : new FormulaCell(result, spreadsheet);
+    }
+
+    /**
+     * Връща номерата на колоните Cc в аргументите на LOOKUP(ключ, Cc, Cr)
+     * или празен масив, ако формулата не е LOOKUP.
+     */
+    public int[] getLookupColumns() {
+        int[] bounds = lookupArguments(formula);
+        if (bounds == null) return new int[0];
+        int[] cols = new int[2];
+        int count = 0;
+        for (int k = 1; k <= 2; k++) {
+            int c = columnNumber(formula, bounds[2 * k], bounds[2 * k + 1]);
+            if (c >= 1) cols[count++] = c;
+        }
+        return count == cols.length ? cols : Arrays.copyOf(cols, count);
+    }
+
+    /**
+     * Заменя колоните Cc в аргументите на LOOKUP чрез colMap; изтрита колона
+     * (число, по-малко от 1) става #REF. Връща null, ако нищо не се променя.
+     */
+    private static String remapLookupColumns(String text, IntUnaryOperator colMap) {
+        int[] bounds = lookupArguments(text);
+        if (bounds == null) return null;
+        StringBuilder sb = null;
+        int copied = 0;
+        for (int k = 1; k <= 2; k++) {
+            int start = bounds[2 * k];
+            int end = bounds[2 * k + 1];
+            int c = columnNumber(text, start, end);
+            if (c < 1) continue;
+            int newCol = colMap.applyAsInt(c);
+            if (newCol == c) continue;
+            if (sb == null) sb = new StringBuilder(text.length() + 4);
+            sb.append(text, copied, start);
+            if (newCol < 1) sb.append(REF_ERROR);
+            else sb.append('C').append(newCol);
+            copied = end;
+        }
+        if (sb == null) return null;
+        sb.append(text, copied, text.length());
+        return sb.toString();
+    }
+
+    /**
+     * Намира трите аргумента на LOOKUP във формулата. Връща {начало, край, ...}
+     * за всеки аргумент без интервалите около него или null, ако формулата не е LOOKUP.
+     */
+    private static int[] lookupArguments(String text) {
+        int i = 0;
+        int length = text.length();
+        while (i < length && Character.isWhitespace(text.charAt(i))) i++;
+        if (i < length && text.charAt(i) == '=') i++;
+        while (i < length && Character.isWhitespace(text.charAt(i))) i++;
+        if (!text.regionMatches(true, i, "LOOKUP(", 0, 7)) return null;
+        int close = text.lastIndexOf(')');
+        if (close < 0 || !text.substring(close + 1).trim().isEmpty()) return null;
+        int[] bounds = new int[6];
+        int start = i + 7;
+        for (int k = 0; k < 3; k++) {
+            int end = k < 2 ? argumentEnd(text, start, close) : close;
+            if (end < 0) return null;
+            int from = start;
+            int to = end;
+            while (from < to && Character.isWhitespace(text.charAt(from))) from++;
+            while (to > from && Character.isWhitespace(text.charAt(to - 1))) to--;
+            bounds[2 * k] = from;
+            bounds[2 * k + 1] = to;
+            start = end + 1;
+        }
+        if (argumentEnd(text, bounds[4], close) >= 0) return null; // повече от три аргумента
+        return bounds;
+    }
+
+    /**
+     * Връща позицията на първата запетая в text[from, to), която не е в текст
+     * с кавички, или -1. В кавичките \" и \\ са екранирани, както при записа на файла.
+     */
+    private static int argumentEnd(String text, int from, int to) {
+        boolean quoted = false;
+        for (int i = from; i < to; i++) {
+            char ch = text.charAt(i);
+            if (quoted && ch == '\\') {
+                i++;
+            } else if (ch == '"') {
+                quoted = !quoted;
+            } else if (ch == ',' && !quoted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Номерът на колона във вида C&lt;номер&gt; в text[from, to) или -1. */
+    private static int columnNumber(String text, int from, int to) {
+        if (from >= to || text.charAt(from) != 'C') return -1;
+        return NumberParser.parseIndex(text, from + 1, to);
+    }
+
+    /**
+     * Ако на позиция start в текста започва препратка R&lt;n&gt;C&lt;m&gt;, връща позицията след нея, иначе -1.
+     */
+    private static int referenceEnd(int start, String text) {
+        int length = text.length();
+        if (start >= length || text.charAt(start) != 'R') return -1;
+        if (start > 0 && Character.isLetterOrDigit(text.charAt(start - 1))) return -1;
+        int i = start + 1;
+        while (i < length && Character.isDigit(text.charAt(i))) i++;
+        if (i == start + 1 || i >= length || text.charAt(i) != 'C') return -1;
+        int colStart = ++i;
+        while (i < length && Character.isDigit(text.charAt(i))) i++;
+        if (i == colStart) return -1;
+        if (i < length && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '!')) return -1;
+        return i;
+    }
+
+    /**
+     * Връща началото на името на таблица пред препратката на позиция start
+     * (Sheet2!R1C1) или start, ако препратката няма име на таблица.
+     */
+    private static int sheetStart(String text, int start) {
+        if (start == 0 || text.charAt(start - 1) != '!') return start;
+        int i = start - 1;
+        while (i > 0 && Workbook.isNameChar(text.charAt(i - 1))) i--;
+        return i;
+    }
+
+    /** Проверява дали препратката на позиция start е към таблица sheet (null - без име). */
+    private static boolean inSheet(String text, int start, String sheet) {
+        int nameStart = sheetStart(text, start);
+        if (sheet == null) return nameStart == start;
+        return start - 1 - nameStart == sheet.length() && text.startsWith(sheet, nameStart);
+    }
+
     /**
      * Изчислява стойността на формулата в клетката.
      * Поддържат се прости операции: +, -, *, / между два операнда.
@@ -40,10 +343,55 @@ public class FormulaCell extends Cell {
      */
     @Override
     public double getValue() {
+        return getValue(spreadsheet);
+    }
+
+    /**
+     * Изчислява стойността на формулата, като препратките се търсят в подадения източник.
+     * Стойността се пази в клетката и се използва повторно от всички нишки, докато
+     * източникът е същият и данните в работната книга не са променени - така
+     * верига от формули се изчислява веднъж, а не при всяко четене на всяка клетка.
+     */
+    @Override
+    public double getValue(CellSource source) {
+        long id = source.cacheId();
+        long version = id != 0 && spreadsheet != null ? spreadsheet.dataVersion() : -1;
+        CachedValue last = cached;
+        if (version >= 0 && last != null && last.id == id && last.version == version) {
+            return last.value;
+        }
+        double value = evaluate(source);
+        if (version >= 0) {
+            cached = new CachedValue(id, version, value);
+        }
+        return value;
+    }
+
+    /**
+     * Връща true, ако стойността за дадения източник е изчислена и още важи.
+     */
+    boolean isCached(CellSource source) {
+        CachedValue last = cached;
+        long id = source.cacheId();
+        return last != null && id != 0 && last.id == id && spreadsheet != null
+                && last.version == spreadsheet.dataVersion();
+    }
+
+    /** Връща нов номер на източник за CellSource.cacheId. */
+    static long newCacheId() {
+        return CACHE_IDS.incrementAndGet();
+    }
+
+    /** Изчислява формулата без да използва запазената стойност. */
+    private double evaluate(CellSource source) {
         try {
             String expr = formula.trim();
             if (expr.startsWith("=")) expr = expr.substring(1).trim();
 
+            if (expr.regionMatches(true, 0, "LOOKUP(", 0, 7) && expr.endsWith(")")) {
+                return lookup(expr.substring(7, expr.length() - 1), source);
+            }
+
             String op = null;
             int opIndex = -1; // -1 означава, че не е намерен оператор в израза
 
@@ -57,8 +405,8 @@ public class FormulaCell extends Cell {
                 String leftStr = expr.substring(0, opIndex).trim();
                 String rightStr = expr.substring(opIndex + 1).trim();
                 
-                double left = parseOperand(leftStr);
-                double right = parseOperand(rightStr);
+                double left = parseOperand(leftStr, source);
+                double right = parseOperand(rightStr, source);
 
                 if (op.equals("+")) return left + right;
                 if (op.equals("-")) return left - right;
@@ -69,7 +417,7 @@ public class FormulaCell extends Cell {
                 }
             } else {
                 // Няма оператор или е само един операнд
-                return parseOperand(expr);
+                return parseOperand(expr, source);
             }
         } catch (Exception e) {
             return Double.NaN;
@@ -77,44 +425,119 @@ public class FormulaCell extends Cell {
         return Double.NaN;
     }
 
+    /**
+     * Изчислява LOOKUP(ключ, Cc, Cr) чрез индекса на колоната в източника.
+     * Ако ключът не бъде намерен, връща NaN (ERROR).
+     */
+    private double lookup(String args, CellSource source) {
+        int length = args.length();
+        int first = argumentEnd(args, 0, length);
+        int second = first < 0 ? -1 : argumentEnd(args, first + 1, length);
+        if (second < 0 || argumentEnd(args, second + 1, length) >= 0) return Double.NaN;
+        int searchCol = parseColumn(args.substring(first + 1, second).trim());
+        int resultCol = parseColumn(args.substring(second + 1).trim());
+        if (searchCol < 1 || resultCol < 1) return Double.NaN;
+
+        Object key = lookupKey(args.substring(0, first).trim(), source);
+        if (key == null) return Double.NaN;
+        int row = source.findRow(searchCol, key);
+        if (row < 0) return Double.NaN;
+        Cell cell = source.getCell(row, resultCol);
+        if (cell == null) return 0.0;
+        return EvaluationGuard.value(cell, source, row, resultCol);
+    }
+
+    /** Парсва колона във вида C&lt;номер&gt;; връща -1 при грешка. */
+    private int parseColumn(String token) {
+        if (!token.startsWith("C")) return -1;
+        return NumberParser.parseIndex(token, 1, token.length());
+    }
+
+    /**
+     * Превръща първия аргумент на LOOKUP в ключ: препратка, число или текст
+     * (с кавички или без).
+     */
+    private Object lookupKey(String token, CellSource source) {
+        int bang = token.indexOf('!');
+        if (bang >= 0) {
+            source = sheetSource(token.substring(0, bang), source);
+            if (source == null) return null;
+            token = token.substring(bang + 1);
+        }
+        if (referenceEnd(0, token) == token.length()) {
+            int cIndex = token.indexOf('C');
+            int r = NumberParser.parseIndex(token, 1, cIndex);
+            int c = NumberParser.parseIndex(token, cIndex + 1, token.length());
+            Cell cell = source.getCell(r, c);
+            return cell != null ? LookupIndex.keyOf(cell, source, r, c) : null;
+        }
+        double number = NumberParser.toDouble(token);
+        if (!Double.isNaN(number)) return number == 0.0 ? 0.0 : number;
+        if (token.length() >= 2 && token.startsWith("\"") && token.endsWith("\"")) {
+            return token.substring(1, token.length() - 1)
+                    .replace("\\\"", "\"")
+                    .replace("\\\\", "\\");
+        }
+        return token;
+    }
+
+    /**
+     * Връща таблицата с дадено име, от която се четат препратките при изчисляване
+     * в source: снимката ѝ, ако source е част от снимка на работната книга,
+     * иначе живата таблица. Връща null, ако няма такава таблица.
+     */
+    private CellSource sheetSource(String name, CellSource source) {
+        Map<String, ? extends CellSource> sheets = source.sheets();
+        if (sheets != null) return sheets.get(name);
+        return spreadsheet != null ? spreadsheet.getSheet(name) : null;
+    }
+
     /**
      * Парсва даден операнд – може да е число, низ или препратка към друга клетка (формат R<row>C<col>).
      *
      *  token - текстов представител на операнда
+     *  source - откъдето се четат клетките, към които сочат препратките
      */
-    private double parseOperand(String token) {
+    private double parseOperand(String token, CellSource source) {
         token = token.trim();
+        // Препратка към изтрит ред или колона
+        if (token.equals(REF_ERROR)) return Double.NaN;
+        // Препратка към друга таблица: Sheet2!R<N>C<M>
+        int bang = token.indexOf('!');
+        if (bang >= 0) {
+            source = sheetSource(token.substring(0, bang), source);
+            if (source == null) return Double.NaN;
+            token = token.substring(bang + 1);
+        }
         // Референция към клетка: R<N>C<M>
         if (token.startsWith("R") && token.contains("C")) {
-            try {
-                int r = Integer.parseInt(token.substring(1, token.indexOf('C')));
-                int c = Integer.parseInt(token.substring(token.indexOf('C') + 1));
-                Cell cell = spreadsheet.getCell(r, c);
-                if (cell == null) return 0.0;
-                if (cell instanceof StringCell) {
-                    return convertStringToNumber(cell.getDisplay());
-                }
-                return cell.getValue();
-            } catch (Exception e) {
-                return 0.0;
-            }
+            int cIndex = token.indexOf('C');
+            int r = NumberParser.parseIndex(token, 1, cIndex);
+            int c = NumberParser.parseIndex(token, cIndex + 1, token.length());
+            if (r < 0 || c < 0) return 0.0;
+            Cell cell = source.getCell(r, c);
+            if (cell == null) return 0.0;
+            // StringCell пази предварително изчислена стойност; формулите минават през
+            // проверката за цикли
+            return EvaluationGuard.value(cell, source, r, c);
         }
         // Число
-        try {
-            return Double.parseDouble(token);
-        } catch (NumberFormatException ignored) {}
-        // Низ
-        return convertStringToNumber(token);
+        double number = NumberParser.toDouble(token);
+        if (!Double.isNaN(number)) return number;
+        // Низ, който не е число
+        return 0.0;
     }
 
-    /**
-     * Конвертира низ към число, ако е възможно.
-     * В противен случай връща 0.0.
-     */
-    private double convertStringToNumber(String str) {
-        try {
-            return Double.parseDouble(str);
-        } catch (NumberFormatException ignored) {}
-        return 0.0;
+    /** Изчислена стойност заедно с източника и версията на данните, за които важи. */
+    private static final class CachedValue {
+        final long id;
+        final long version;
+        final double value;
+
+        CachedValue(long id, long version, double value) {
+            this.id = id;
+            this.version = version;
+            this.value = value;
+        }
     }
 }
@@ -0,0 +1,458 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Клас, който пази историята на редакциите за undo/redo.
+ * Всяка редакция се записва като малка разлика (стара и нова клетка),
+ * а не като копие на цялата таблица. Общият размер е ограничен от бюджет,
+ * като при препълване се изхвърлят най-старите записи.
+ * Клетките от историята се връщат в таблицата като копия, за да не се
+ * променят връзките на клетки, които може да са част от снимка.
+ * Методите са synchronized, защото редакции на различни редове
+ * може да се записват от няколко нишки едновременно.
+ */
+public class HistoryManager {
+    /** Бюджет по подразбиране - 16 MB. */
+    public static final long DEFAULT_BUDGET = 16L * 1024 * 1024;
+
+    /** Приблизителен размер на един запис без клетките в него. */
+    private static final long DELTA_OVERHEAD = 48;
+
+    private TableManager tableManager;
+    private Listener listener;
+    private Deque<Delta> undoStack = new ArrayDeque<>();
+    private Deque<Delta> redoStack = new ArrayDeque<>();
+    private long budget = DEFAULT_BUDGET;
+    private long usedBytes = 0;
+
+    public HistoryManager(TableManager tableManager, Listener listener) {
+        this.tableManager = tableManager;
+        this.listener = listener;
+    }
+
+    /**
+     * Получава промените, които undo/redo правят по формулите в таблицата,
+     * за да се поддържа индексът на зависимостите, без да се строи наново.
+     */
+    public interface Listener {
+        /** Формулите в реда може да са се променили. */
+        void rowChanged(Row row);
+
+        /** Редът е премахнат от таблицата. */
+        void rowRemoved(Row row);
+
+        /**
+         * Преномерира по map препратките към редовете (или колоните при columns)
+         * с номер number (1-базиран) и след него - след вмъкване или изтриване.
+         */
+        void moveReferences(boolean columns, int number, IntUnaryOperator map);
+
+        /** Редовете са пренаредени и препратките във всички формули са преномерирани. */
+        void reordered();
+    }
+
+    /**
+     * Записва една редакция.
+     * rowIdx и position са 0-базирани; rowsBefore и cellsBefore описват
+     * размера на таблицата и на реда преди редакцията.
+     */
+    public synchronized void record(int rowIdx, int position, int rowsBefore, int cellsBefore, Cell oldCell, Cell newCell) {
+        push(new EditDelta(rowIdx, position, rowsBefore, cellsBefore,
+                position < cellsBefore ? oldCell : null, newCell));
+    }
+
+    /**
+     * Записва пренареждане на редовете (напр. сортиране).
+     * order[i] е старият индекс на реда, който е застанал на позиция i.
+     */
+    public synchronized void recordReorder(int[] order) {
+        push(new ReorderDelta(order));
+    }
+
+    /**
+     * Записва вмъкване на празен ред или колона (columns) на позиция index (0-базирана).
+     */
+    public synchronized void recordInsert(boolean columns, int index) {
+        push(new StructureDelta(columns, true, index, null, null, new BrokenReferences()));
+    }
+
+    /**
+     * Записва изтриване на ред (0-базиран). removed е изтритият ред, а broken -
+     * формулите, в които преномерирането е оставило #REF.
+     */
+    public synchronized void recordDeleteRow(int rowIdx, Row removed, BrokenReferences broken) {
+        List<Cell> cells = new ArrayList<>();
+        for (Cell cell = removed.getFirstCell(); cell != null; cell = cell.getNextCell()) {
+            cells.add(cell);
+        }
+        push(new StructureDelta(false, false, rowIdx, null, cells.toArray(new Cell[0]), broken));
+    }
+
+    /**
+     * Записва изтриване на колона (0-базирана). removed са изтритите клетки по
+     * индекс на реда (null за редовете без такава клетка).
+     */
+    public synchronized void recordDeleteColumn(int colIdx, Cell[] removed, BrokenReferences broken) {
+        int count = 0;
+        for (Cell cell : removed) {
+            if (cell != null) count++;
+        }
+        int[] rows = new int[count];
+        Cell[] cells = new Cell[count];
+        int k = 0;
+        for (int r = 0; r < removed.length; r++) {
+            if (removed[r] == null) continue;
+            rows[k] = r;
+            cells[k++] = removed[r];
+        }
+        push(new StructureDelta(true, false, colIdx, rows, cells, broken));
+    }
+
+    /**
+     * Отменя последната редакция. Връща false, ако няма какво да се отмени.
+     */
+    public synchronized boolean undo() {
+        Delta delta = undoStack.pollLast();
+        if (delta == null) return false;
+        delta.undo(tableManager, listener);
+        redoStack.addLast(delta);
+        return true;
+    }
+
+    /**
+     * Прилага отново последната отменена редакция. Връща false, ако няма такава.
+     */
+    public synchronized boolean redo() {
+        Delta delta = redoStack.pollLast();
+        if (delta == null) return false;
+        delta.redo(tableManager, listener);
+        undoStack.addLast(delta);
+        return true;
+    }
+
+    /**
+     * Преномерира препратките към друга таблица (sheet!R1C1) в клетките от историята,
+     * след като в нея са вмъкнати, изтрити или пренаредени редове или колони.
+     * Иначе undo/redo би върнало формула, която сочи към старите позиции.
+     */
+    public synchronized void remapReferences(String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        for (Delta delta : undoStack) {
+            delta.remapReferences(sheet, rowMap, colMap);
+        }
+        for (Delta delta : redoStack) {
+            delta.remapReferences(sheet, rowMap, colMap);
+        }
+    }
+
+    /**
+     * Задава максималния размер на историята в байтове.
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    /**
+     * Връща приблизителния размер на историята в байтове.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Изчиства цялата история.
+     */
+    public synchronized void clear() {
+        undoStack.clear();
+        redoStack.clear();
+        usedBytes = 0;
+    }
+
+    /** Добавя нов запис и изчиства отменените редакции. */
+    private void push(Delta delta) {
+        clearRedo();
+        undoStack.addLast(delta);
+        usedBytes += delta.size;
+        evict();
+    }
+
+    /** Изчиства отменените редакции след нова редакция. */
+    private void clearRedo() {
+        for (Delta delta : redoStack) {
+            usedBytes -= delta.size;
+        }
+        redoStack.clear();
+    }
+
+    /** Изхвърля най-старите записи, докато историята не влезе в бюджета. */
+    private void evict() {
+        while (usedBytes > budget && !undoStack.isEmpty()) {
+            usedBytes -= undoStack.pollFirst().size;
+        }
+    }
+
+    /**
+     * Един запис в историята, който знае как да се отмени и приложи отново.
+     */
+    private abstract static class Delta {
+        final long size;
+
+        Delta(long size) {
+            this.size = size;
+        }
+
+        abstract void undo(TableManager tableManager, Listener listener);
+
+        abstract void redo(TableManager tableManager, Listener listener);
+
+        /** Преномерира препратките към таблица sheet в пазените клетки. */
+        void remapReferences(String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        }
+
+        /** Връща клетката с преномерирани препратки към sheet (или същата клетка). */
+        static Cell remap(Cell cell, String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+            if (!(cell instanceof FormulaCell)) return cell;
+            FormulaCell formula = (FormulaCell) cell;
+            if (formula.getFormula().indexOf('!') < 0) return cell;
+            return formula.remapReferences(sheet, rowMap, colMap);
+        }
+    }
+
+    /**
+     * Редакция на клетка: позицията на клетката, размерът преди промяната
+     * и старата и новата клетка. oldCell е null, ако клетката е била добавена.
+     */
+    private static final class EditDelta extends Delta {
+        final int rowIdx;
+        final int position;
+        final int rowsBefore;
+        final int cellsBefore;
+        Cell oldCell;
+        Cell newCell;
+
+        EditDelta(int rowIdx, int position, int rowsBefore, int cellsBefore, Cell oldCell, Cell newCell) {
+            super(DELTA_OVERHEAD
+                    + (oldCell != null ? oldCell.estimateSize() : 0)
+                    + newCell.estimateSize());
+            this.rowIdx = rowIdx;
+            this.position = position;
+            this.rowsBefore = rowsBefore;
+            this.cellsBefore = cellsBefore;
+            this.oldCell = oldCell;
+            this.newCell = newCell;
+        }
+
+        @Override
+        void undo(TableManager tableManager, Listener listener) {
+            Row row = tableManager.getRowForWrite(rowIdx);
+            if (oldCell != null) {
+                row.replaceCell(position, oldCell.copy());
+                listener.rowChanged(row);
+            } else {
+                // Клетката е била добавена - връщаме реда и таблицата към стария размер
+                row.truncate(cellsBefore);
+                if (rowsBefore <= rowIdx) {
+                    // Добавените редове са празни освен този
+                    listener.rowRemoved(row);
+                    tableManager.truncate(rowsBefore);
+                } else {
+                    listener.rowChanged(row);
+                }
+            }
+        }
+
+        @Override
+        void redo(TableManager tableManager, Listener listener) {
+            Row row;
+            if (oldCell != null) {
+                row = tableManager.getRowForWrite(rowIdx);
+                row.replaceCell(position, newCell.copy());
+            } else {
+                if (rowsBefore <= rowIdx) {
+                    tableManager.addRow();
+                }
+                row = tableManager.getRowForWrite(rowIdx);
+                row.padTo(position);
+                row.addCell(newCell.copy());
+            }
+            listener.rowChanged(row);
+        }
+
+        @Override
+        void remapReferences(String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+            oldCell = remap(oldCell, sheet, rowMap, colMap);
+            newCell = remap(newCell, sheet, rowMap, colMap);
+        }
+    }
+
+    /**
+     * Формулите, в които изтриване на ред или колона е оставило препратки #REF:
+     * позициите им след изтриването и старите клетки. При undo те се връщат
+     * точно, защото #REF не може да се преномерира обратно.
+     */
+    static final class BrokenReferences {
+        private final List<Integer> rows = new ArrayList<>(0);
+        private final List<Integer> positions = new ArrayList<>(0);
+        private final List<Cell> cells = new ArrayList<>(0);
+
+        /** Запомня старата клетка на ред rowIdx и позиция position (0-базирани). */
+        void add(int rowIdx, int position, Cell oldCell) {
+            rows.add(rowIdx);
+            positions.add(position);
+            cells.add(oldCell);
+        }
+
+        private long estimateSize() {
+            long size = 0;
+            for (Cell cell : cells) {
+                size += 16 + cell.estimateSize();
+            }
+            return size;
+        }
+
+        private void remapReferences(String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+            cells.replaceAll(cell -> Delta.remap(cell, sheet, rowMap, colMap));
+        }
+
+        /** Връща старите клетки на местата им. */
+        private void restore(TableManager tableManager, Listener listener) {
+            for (int i = 0; i < cells.size(); i++) {
+                Row row = tableManager.getRowForWrite(rows.get(i));
+                row.replaceCell(positions.get(i), cells.get(i).copy());
+                listener.rowChanged(row);
+            }
+        }
+    }
+
+    /**
+     * Вмъкване или изтриване на ред или колона. Пази позицията, изтритите клетки
+     * и формулите с #REF; останалите препратки се преномерират обратно чрез
+     * обратното преобразуване на номерата.
+     */
+    private static final class StructureDelta extends Delta {
+        final boolean columns;
+        final boolean inserted;
+        final int index;
+        /** При изтрита колона - индексите на редовете, които са имали клетка в нея. */
+        final int[] rows;
+        /** Изтритите клетки: на реда или на колоната (по rows); null при вмъкване. */
+        final Cell[] cells;
+        final BrokenReferences broken;
+
+        StructureDelta(boolean columns, boolean inserted, int index, int[] rows, Cell[] cells,
+                       BrokenReferences broken) {
+            super(DELTA_OVERHEAD + sizeOf(rows, cells) + broken.estimateSize());
+            this.columns = columns;
+            this.inserted = inserted;
+            this.index = index;
+            this.rows = rows;
+            this.cells = cells;
+            this.broken = broken;
+        }
+
+        private static long sizeOf(int[] rows, Cell[] cells) {
+            long size = rows != null ? 4L * rows.length : 0;
+            if (cells != null) {
+                for (Cell cell : cells) {
+                    size += 8 + cell.estimateSize();
+                }
+            }
+            return size;
+        }
+
+        @Override
+        void undo(TableManager tableManager, Listener listener) {
+            if (inserted) {
+                remove(tableManager, listener);
+                listener.moveReferences(columns, index + 1, TableManager.deleteMap(index + 1));
+            } else {
+                listener.moveReferences(columns, index + 1, TableManager.insertMap(index + 1));
+                broken.restore(tableManager, listener);
+                insert(tableManager, listener);
+            }
+        }
+
+        @Override
+        void redo(TableManager tableManager, Listener listener) {
+            if (inserted) {
+                insert(tableManager, listener);
+                listener.moveReferences(columns, index + 1, TableManager.insertMap(index + 1));
+            } else {
+                remove(tableManager, listener);
+                listener.moveReferences(columns, index + 1, TableManager.deleteMap(index + 1));
+            }
+        }
+
+        @Override
+        void remapReferences(String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+            if (cells != null) {
+                for (int i = 0; i < cells.length; i++) {
+                    cells[i] = remap(cells[i], sheet, rowMap, colMap);
+                }
+            }
+            broken.remapReferences(sheet, rowMap, colMap);
+        }
+
+        private void remove(TableManager tableManager, Listener listener) {
+            if (columns) {
+                tableManager.deleteColumn(index);
+            } else {
+                listener.rowRemoved(tableManager.deleteRow(index));
+            }
+        }
+
+        /** Вмъква реда или колоната отново - празни или с изтритите клетки. */
+        private void insert(TableManager tableManager, Listener listener) {
+            if (columns && inserted) {
+                tableManager.insertColumn(index);
+            } else if (columns) {
+                for (int i = 0; i < rows.length; i++) {
+                    Row row = tableManager.getRowForWrite(rows[i]);
+                    row.insertCell(index, cells[i].copy());
+                    listener.rowChanged(row);
+                }
+            } else {
+                Row row = tableManager.insertRow(index);
+                if (cells != null) {
+                    for (Cell cell : cells) {
+                        row.addCell(cell.copy());
+                    }
+                    listener.rowChanged(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Пренареждане на редовете - пази само пермутацията, а не самите редове.
+     */
+    private static final class ReorderDelta extends Delta {
+        final int[] order;
+
+        ReorderDelta(int[] order) {
+            super(DELTA_OVERHEAD + 4L * order.length);
+            this.order = order;
+        }
+
+        @Override
+        void undo(TableManager tableManager, Listener listener) {
+            int[] inverse = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                inverse[order[i]] = i;
+            }
+            tableManager.reorder(inverse);
+            listener.reordered();
+        }
+
+        @Override
+        void redo(TableManager tableManager, Listener listener) {
+            tableManager.reorder(order);
+            listener.reordered();
+        }
+    }
+}
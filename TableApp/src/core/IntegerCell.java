@@ -4,9 +4,9 @@ package core;
  * Клетка, съдържаща цяло число.
  */
 public class IntegerCell extends Cell {
-    private int value;
+    private long value;
 
-    public IntegerCell(int value) {
+    public IntegerCell(long value) {
         this.value = value;
     }
 
@@ -15,7 +15,7 @@ public class IntegerCell extends Cell {
      */
     @Override
     public String getDisplay() {
-        return Integer.toString(value);
+        return Long.toString(value);
     }
 
     /**
@@ -25,4 +25,14 @@ public class IntegerCell extends Cell {
     public double getValue() {
         return value;
     }
+
+    // Връща точната стойност (без загуба на точност при големи числа)
+    long longValue() {
+        return value;
+    }
+
+    @Override
+    public Cell copy() {
+        return new IntegerCell(value);
+    }
 }
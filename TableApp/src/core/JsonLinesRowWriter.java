@@ -0,0 +1,54 @@
+package core;
+
+/**
+ * Експортиране като JSON Lines: всеки ред е JSON масив на отделен ред.
+ * Числата и изчислените формули са JSON числа, текстът е низ,
+ * а формула с грешка (ERROR) е null.
+ */
+public class JsonLinesRowWriter implements RowWriter {
+
+    @Override
+    public void appendRow(StringBuilder sb, TableSnapshot snapshot, Cell firstCell) {
+        sb.append('[');
+        for (Cell cell = firstCell; cell != null; cell = cell.getNextCell()) {
+            if (cell != firstCell) sb.append(',');
+            if (cell instanceof StringCell) {
+                appendString(sb, cell.getDisplay(snapshot));
+            } else {
+                appendNumber(sb, cell.getValue(snapshot));
+            }
+        }
+        sb.append("]\n");
+    }
+
+    private static void appendNumber(StringBuilder sb, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        } else if (value == (long) value) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                sb.append('\\').append(ch);
+            } else if (ch == '\n') {
+                sb.append("\\n");
+            } else if (ch == '\r') {
+                sb.append("\\r");
+            } else if (ch == '\t') {
+                sb.append("\\t");
+            } else if (ch < 0x20) {
+                sb.append(String.format("\\u%04x", (int) ch));
+            } else {
+                sb.append(ch);
+            }
+        }
+        sb.append('"');
+    }
+}
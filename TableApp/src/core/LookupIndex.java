@@ -0,0 +1,237 @@
+package core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Хеш индекси по колони за функцията LOOKUP във формулите.
+ * Индексът на колона се строи при първото търсене в нея и после се
+ * поддържа при всяка редакция, така че търсенето е O(1) вместо обхождане
+ * на колоната. За всеки ключ пази всички редове с него, затова при промяна
+ * на реда с първото срещане следващият ред го заменя за O(log k), без
+ * индексът да се строи наново.
+ * Колоните с формули се индексират по изчислените стойности отделно - този
+ * индекс важи, докато данните не се променят (вж. getEvaluated).
+ */
+public class LookupIndex {
+    /** Индекси по 0-базиран номер на колона. */
+    private Map<Integer, ColumnIndex> columns = new HashMap<>();
+    /** Индекси с изчислените стойности на колони с формули, по 0-базиран номер на колона. */
+    private Map<Integer, ColumnIndex> evaluated = new HashMap<>();
+
+    /**
+     * Връща индекса на колона или null, ако още не е построен.
+     */
+    public synchronized ColumnIndex get(int colIdx) {
+        return columns.get(colIdx);
+    }
+
+    /**
+     * Запомня построен индекс на колона.
+     */
+    public synchronized void put(int colIdx, ColumnIndex index) {
+        columns.put(colIdx, index);
+    }
+
+    /**
+     * Връща индекса с изчислените стойности на колона с формули, ако е построен
+     * при дадената версия на данните, иначе null.
+     */
+    public synchronized ColumnIndex getEvaluated(int colIdx, long version) {
+        ColumnIndex index = evaluated.get(colIdx);
+        return index != null && index.version == version ? index : null;
+    }
+
+    /**
+     * Запомня индекс с изчислени стойности, построен при дадената версия на данните.
+     */
+    public synchronized void putEvaluated(int colIdx, ColumnIndex index, long version) {
+        index.version = version;
+        evaluated.put(colIdx, index);
+    }
+
+    /**
+     * Обновява индекса след замяна на клетка. oldCell е null, ако клетката е нова.
+     */
+    public synchronized void onEdit(int rowIdx, int colIdx, Cell oldCell, Cell newCell) {
+        ColumnIndex index = columns.get(colIdx);
+        if (index == null || index.hasFormulas) return;
+        if (newCell instanceof FormulaCell) {
+            // Стойностите на формулите зависят от други клетки - колоната
+            // се търси по изчислените стойности (вж. getEvaluated)
+            index.hasFormulas = true;
+            index.rows.clear();
+            return;
+        }
+        if (oldCell != null) {
+            index.remove(keyOf(oldCell, null), rowIdx);
+        }
+        index.add(keyOf(newCell, null), rowIdx);
+    }
+
+    /**
+     * Обновява индексите след добавяне на празни клетки в колоните [fromCol, toCol) на ред.
+     */
+    public synchronized void onPadded(int rowIdx, int fromCol, int toCol) {
+        for (int c = fromCol; c < toCol; c++) {
+            ColumnIndex index = columns.get(c);
+            if (index != null) {
+                index.add("", rowIdx);
+            }
+        }
+    }
+
+    /**
+     * Изчиства всички индекси (след структурни промени).
+     */
+    public synchronized void clear() {
+        columns.clear();
+        evaluated.clear();
+    }
+
+    /**
+     * Строи индекс на колона от снимка, като изчислява формулите в нея.
+     */
+    public static ColumnIndex build(TableSnapshot snapshot, int colIdx) {
+        ColumnIndex index = new ColumnIndex(false);
+        for (int r = 0; r < snapshot.getHeight(); r++) {
+            Cell cell = snapshot.getFirstCell(r);
+            for (int i = 0; cell != null && i < colIdx; i++) {
+                cell = cell.getNextCell();
+            }
+            if (cell == null) continue;
+            index.add(keyOf(cell, snapshot, r + 1, colIdx + 1), r);
+        }
+        return index;
+    }
+
+    /**
+     * Строи индекс на колона направо от редовете на живата таблица, без снимка.
+     * Трябва да се извиква под изключително заключване. Ако в колоната има
+     * формула, индексът остава празен и е отбелязан с hasFormulas().
+     */
+    public static ColumnIndex build(TableManager tableManager, int colIdx) {
+        ColumnIndex index = new ColumnIndex(true);
+        int[] rowIdx = {0};
+        tableManager.forEachRow(row -> {
+            int r = rowIdx[0]++;
+            if (index.hasFormulas) return;
+            Cell cell = row.getCell(colIdx);
+            if (cell == null) return;
+            if (cell instanceof FormulaCell) {
+                index.hasFormulas = true;
+                index.rows.clear();
+                return;
+            }
+            index.add(keyOf(cell, null), r);
+        });
+        return index;
+    }
+
+    /**
+     * Строи индекс на колона с изчислени стойности, като чете клетките от
+     * източника ред по ред (без снимка). Използва се за колони с формули.
+     */
+    public static ColumnIndex evaluate(CellSource source, int height, int colIdx) {
+        ColumnIndex index = new ColumnIndex(false);
+        for (int r = 0; r < height; r++) {
+            Cell cell = source.getCell(r + 1, colIdx + 1);
+            if (cell != null) {
+                index.add(keyOf(cell, source, r + 1, colIdx + 1), r);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Връща ключа за търсене на клетка: числото ѝ или текста, ако не е число.
+     */
+    public static Object keyOf(Cell cell, CellSource source) {
+        if (cell instanceof StringCell && !((StringCell) cell).isNumeric()) {
+            return cell.getDisplay();
+        }
+        double value = source != null ? cell.getValue(source) : cell.getValue();
+        return value == 0.0 ? 0.0 : value; // -0.0 и 0.0 са един ключ
+    }
+
+    /**
+     * Връща ключа на клетката на ред row и колона col (започващи от 1) в source,
+     * като формулите се изчисляват с проверка за цикли.
+     */
+    static Object keyOf(Cell cell, CellSource source, int row, int col) {
+        if (!(cell instanceof FormulaCell)) return keyOf(cell, source);
+        double value = EvaluationGuard.value(cell, source, row, col);
+        return value == 0.0 ? 0.0 : value;
+    }
+
+    /**
+     * Индекс на една колона: ключ -&gt; редовете (0-базирани) с този ключ.
+     * Повечето ключове са в един ред, затова той се пази като Integer и
+     * само при повторение - в подредено множество. Индексите, които не се
+     * поддържат при редакции (на снимки и с изчислени стойности), пазят само първия ред.
+     */
+    public static final class ColumnIndex {
+        /** Ключ -&gt; редът (Integer) или редовете (TreeSet&lt;Integer&gt;) с този ключ. */
+        private Map<Object, Object> rows = new HashMap<>();
+        private volatile boolean hasFormulas;
+        /** Версията на данните, при която е построен индексът с изчислени стойности. */
+        private long version;
+        /** Дали се пазят всички редове за ключ или само първият. */
+        private final boolean allRows;
+
+        ColumnIndex(boolean allRows) {
+            this.allRows = allRows;
+        }
+
+        /**
+         * Връща първия ред (0-базиран) с дадения ключ или -1.
+         */
+        @SuppressWarnings("unchecked")
+        public int find(Object key) {
+            Object value = rows.get(key);
+            if (value == null) return -1;
+            return value instanceof Integer ? (Integer) value : ((TreeSet<Integer>) value).first();
+        }
+
+        /**
+         * Връща true, ако колоната съдържа (или е съдържала) формули и се търси
+         * по изчислените им стойности вместо в този индекс.
+         */
+        public boolean hasFormulas() {
+            return hasFormulas;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void add(Object key, int rowIdx) {
+            Object value = rows.get(key);
+            if (value == null) {
+                rows.put(key, rowIdx);
+            } else if (value instanceof Integer) {
+                if ((Integer) value == rowIdx) return;
+                if (!allRows) {
+                    if (rowIdx < (Integer) value) rows.put(key, rowIdx);
+                    return;
+                }
+                TreeSet<Integer> set = new TreeSet<>();
+                set.add((Integer) value);
+                set.add(rowIdx);
+                rows.put(key, set);
+            } else {
+                ((TreeSet<Integer>) value).add(rowIdx);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void remove(Object key, int rowIdx) {
+            Object value = rows.get(key);
+            if (value instanceof Integer) {
+                if ((Integer) value == rowIdx) rows.remove(key);
+            } else if (value != null) {
+                TreeSet<Integer> set = (TreeSet<Integer>) value;
+                set.remove(rowIdx);
+                if (set.size() == 1) rows.put(key, set.first());
+            }
+        }
+    }
+}
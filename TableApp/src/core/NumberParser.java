@@ -0,0 +1,136 @@
+package core;
+
+/**
+ * Помощен клас за разпознаване и парсване на числа с едно минаване по текста.
+ * Не използва изключения - при невалиден вход връща null или NaN.
+ */
+final class NumberParser {
+    /** Най-голямата цяла мантиса, която се представя точно като double (2^53). */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /** Степените на 10, които се представят точно като double. */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+            1e21, 1e22
+    };
+
+    private NumberParser() {
+    }
+
+    /**
+     * Създава IntegerCell или DoubleCell директно от текста.
+     * Приема минус по избор, цифри, най-много една точка и експонента (напр. 1.5e3).
+     * Цели числа извън обхвата на long стават DoubleCell.
+     * Връща null, ако текстът не е число.
+     */
+    static Cell parseCell(String s) {
+        return parse(s, false);
+    }
+
+    /**
+     * Връща числовата стойност на текста или NaN, ако текстът не е число.
+     * За разлика от parseCell приема и плюс отпред (напр. "+5"), както
+     * Double.parseDouble преди - такъв текст остава StringCell, но има стойност.
+     * Както Double.parseDouble, пренебрегва интервалите в началото и в края (напр. " 5 ").
+     */
+    static double toDouble(String s) {
+        Cell cell = parse(s.trim(), true);
+        return cell != null ? cell.getValue() : Double.NaN;
+    }
+
+    /** Парсва числото; allowPlus разрешава знак плюс в началото. */
+    private static Cell parse(String s, boolean allowPlus) {
+        int length = s.length();
+        if (length == 0) return null;
+
+        int i = 0;
+        boolean negative = s.charAt(0) == '-';
+        if (negative || (allowPlus && s.charAt(0) == '+')) i++;
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        int droppedDigits = 0; // цели цифри, които не се събират в мантисата
+        boolean pointSeen = false;
+        boolean overflow = false;
+
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (!overflow && mantissa <= (Long.MAX_VALUE - 9) / 10) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (pointSeen) fractionDigits++;
+                } else {
+                    overflow = true;
+                    if (!pointSeen) droppedDigits++;
+                }
+            } else if (c == '.') {
+                if (pointSeen) return null; // повече от една точка
+                pointSeen = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) return null;
+
+        boolean exponentSeen = false;
+        int exponent = 0;
+        if (i < length) {
+            char c = s.charAt(i);
+            if (c != 'e' && c != 'E') return null;
+            exponentSeen = true;
+            i++;
+            boolean negativeExponent = false;
+            if (i < length && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+                negativeExponent = s.charAt(i) == '-';
+                i++;
+            }
+            int exponentDigits = 0;
+            for (; i < length; i++) {
+                c = s.charAt(i);
+                if (c < '0' || c > '9') return null;
+                exponentDigits++;
+                if (exponent < 100000) exponent = exponent * 10 + (c - '0');
+            }
+            if (exponentDigits == 0) return null;
+            if (negativeExponent) exponent = -exponent;
+        }
+
+        if (!pointSeen && !exponentSeen && !overflow) {
+            return new IntegerCell(negative ? -mantissa : mantissa);
+        }
+
+        int decimalExponent = exponent - fractionDigits + droppedDigits;
+        double value;
+        if (!overflow && mantissa <= MAX_EXACT_MANTISSA
+                && decimalExponent >= -22 && decimalExponent <= 22) {
+            // И мантисата, и степента са точни, така че резултатът е коректно закръглен
+            value = decimalExponent >= 0
+                    ? mantissa * POWERS_OF_TEN[decimalExponent]
+                    : mantissa / POWERS_OF_TEN[-decimalExponent];
+            if (negative) value = -value;
+        } else {
+            // Текстът вече е проверен, затова тук не може да възникне изключение
+            value = Double.parseDouble(s);
+        }
+        return new DoubleCell(value);
+    }
+
+    /**
+     * Парсва неотрицателно цяло число в интервала [from, to) на текста.
+     * Връща -1, ако интервалът е празен, съдържа нецифрени символи или препълва int.
+     */
+    static int parseIndex(String s, int from, int to) {
+        if (from >= to) return -1;
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            if (result > (Integer.MAX_VALUE - 9) / 10) return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+package core;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Клас, който избира редове от таблицата по условие.
+ * Редовете се обхождат в снимка и всеки съвпадащ ред се извежда веднага,
+ * без да се създава междинна таблица. При много редове условието
+ * се проверява паралелно, а изходът запазва реда на таблицата.
+ */
+public class QueryManager {
+    /** Под този брой редове проверката е в една нишка. */
+    private static final int PARALLEL_THRESHOLD = 10000;
+
+    /**
+     * Извежда съвпадащите редове във формата на print. Връща броя им.
+     */
+    public int select(TableSnapshot snapshot, RowFilter filter, PrintStream out) {
+        int width = snapshot.getWidth();
+        return forEachMatch(snapshot, filter, r -> {
+            StringBuilder sb = new StringBuilder();
+            DisplayManager.appendRow(sb, snapshot, snapshot.getFirstCell(r), width);
+            out.println(sb);
+        });
+    }
+
+    /**
+     * Записва съвпадащите редове във файл в същия формат като save. Връща броя им.
+     */
+    public int select(TableSnapshot snapshot, RowFilter filter, String filePath) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
+            return forEachMatch(snapshot, filter, r -> {
+                try {
+                    FileManager.writeRow(writer, snapshot, snapshot.getFirstCell(r));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Изпълнява action за индекса на всеки съвпадащ ред, по реда на таблицата. */
+    private int forEachMatch(TableSnapshot snapshot, RowFilter filter, IntConsumer action) {
+        int height = snapshot.getHeight();
+        int[] count = new int[1];
+        IntStream rows = IntStream.range(0, height);
+        if (height >= PARALLEL_THRESHOLD) {
+            rows = rows.parallel();
+        }
+        rows.filter(r -> filter.matches(snapshot, snapshot.getFirstCell(r)))
+                .forEachOrdered(r -> {
+                    action.accept(r);
+                    count[0]++;
+                });
+        return count[0];
+    }
+}
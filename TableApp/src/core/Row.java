@@ -6,15 +6,86 @@ package core;
  */
 public class Row {
     private Cell firstCell;
-    private Row nextRow;
+    /** Поколението на таблицата, в което са създадени клетките на реда (за copy-on-write). */
+    private int epoch;
+    /** Блокът, в който е редът (за зареждане на изнесени клетки). */
+    RowBlock block;
+    /**
+     * Позицията на последния запис на клетките във файла за изнасяне или -1.
+     * Записът е валиден, докато редът не се промени.
+     */
+    private long spillPosition = -1;
+    private int spillLength;
+    /** Най-големите номера на ред и колона, към които сочат формулите в реда (вж. DependencyIndex). */
+    int maxReferencedRow;
+    int maxReferencedColumn;
 
     public Row() {
         this.firstCell = null;
-        this.nextRow = null;
+    }
+
+    public Row(int epoch) {
+        this();
+        this.epoch = epoch;
+    }
+
+    // Връща поколението, в което са създадени клетките на реда
+    public int getEpoch() {
+        return epoch;
+    }
+
+    // Заменя клетките на реда с техни копия, за да не се променят клетките,
+    // споделени със снимка. Редът запомня новото поколение.
+    public void detach(int epoch) {
+        Cell last = null;
+        for (Cell current = firstCell; current != null; current = current.getNextCell()) {
+            Cell cell = current.copy();
+            if (last == null) {
+                firstCell = cell;
+            } else {
+                last.setNextCell(cell);
+            }
+            last = cell;
+        }
+        this.epoch = epoch;
+    }
+
+    // Връща true, ако клетките на реда са изнесени във файл и не са в паметта
+    boolean isPaged() {
+        return firstCell == null && spillPosition >= 0;
+    }
+
+    // Връща позицията на записа на реда във файла за изнасяне или -1
+    long getSpillPosition() {
+        return spillPosition;
+    }
+
+    // Връща дължината на записа на реда във файла за изнасяне
+    int getSpillLength() {
+        return spillLength;
+    }
+
+    // Запомня къде са записани клетките на реда
+    void setSpill(long position, int length) {
+        this.spillPosition = position;
+        this.spillLength = length;
+    }
+
+    // Освобождава клетките на реда; трябва преди това да са записани във файла
+    void unload() {
+        firstCell = null;
+    }
+
+    // Връща заредените от файла клетки в реда. Те са нови обекти,
+    // затова редът приема текущото поколение.
+    void load(Cell firstCell, int epoch) {
+        this.firstCell = firstCell;
+        this.epoch = epoch;
     }
 
     // Добавя клетка в края на реда
     public void addCell(Cell cell) {
+        spillPosition = -1;
         if (firstCell == null) {
             firstCell = cell;
         } else {
@@ -26,6 +97,26 @@ public class Row {
         }
     }
 
+    // Добавя празни клетки, докато редът стане дълъг count клетки
+    public void padTo(int count) {
+        spillPosition = -1;
+        Cell last = null;
+        int size = 0;
+        for (Cell current = firstCell; current != null; current = current.getNextCell()) {
+            last = current;
+            size++;
+        }
+        for (; size < count; size++) {
+            Cell cell = new StringCell("");
+            if (last == null) {
+                firstCell = cell;
+            } else {
+                last.setNextCell(cell);
+            }
+            last = cell;
+        }
+    }
+
     // Връща клетка по индекс (0-базиран)
     public Cell getCell(int index) {
         Cell current = firstCell;
@@ -37,24 +128,81 @@ public class Row {
         return current;
     }
 
-    // Връща първата клетка в реда
-    public Cell getFirstCell() { 
-        return firstCell; 
+    // Заменя клетката на даден индекс (0-базиран) и връща старата
+    public Cell replaceCell(int index, Cell cell) {
+        spillPosition = -1;
+        Cell prev = null;
+        Cell current = firstCell;
+        int i = 0;
+        while (current != null && i < index) {
+            prev = current;
+            current = current.getNextCell();
+            i++;
+        }
+        if (current == null) return null;
+        cell.setNextCell(current.getNextCell());
+        if (prev == null) {
+            firstCell = cell;
+        } else {
+            prev.setNextCell(cell);
+        }
+        return current;
     }
 
-    // Връща следващия ред
-    public Row getNextRow() { 
-        return nextRow; 
+    // Вмъква клетка на даден индекс (0-базиран); следващите клетки се изместват надясно
+    public void insertCell(int index, Cell cell) {
+        spillPosition = -1;
+        if (index <= 0) {
+            cell.setNextCell(firstCell);
+            firstCell = cell;
+            return;
+        }
+        Cell prev = getCell(index - 1);
+        if (prev == null) return;
+        cell.setNextCell(prev.getNextCell());
+        prev.setNextCell(cell);
+    }
+
+    // Премахва клетката на даден индекс (0-базиран) и я връща
+    public Cell removeCell(int index) {
+        spillPosition = -1;
+        if (firstCell == null) return null;
+        Cell removed;
+        if (index <= 0) {
+            removed = firstCell;
+            firstCell = removed.getNextCell();
+        } else {
+            Cell prev = getCell(index - 1);
+            if (prev == null || prev.getNextCell() == null) return null;
+            removed = prev.getNextCell();
+            prev.setNextCell(removed.getNextCell());
+        }
+        removed.setNextCell(null);
+        return removed;
+    }
+
+    // Оставя само първите count клетки в реда
+    public void truncate(int count) {
+        spillPosition = -1;
+        if (count <= 0) {
+            firstCell = null;
+            return;
+        }
+        Cell last = getCell(count - 1);
+        if (last != null) {
+            last.setNextCell(null);
+        }
     }
 
-    // Задава следващия ред
-    public void setNextRow(Row nextRow) { 
-        this.nextRow = nextRow; 
+    // Връща първата клетка в реда
+    public Cell getFirstCell() { 
+        return firstCell; 
     }
 
     // Задава първата клетка
     public void setFirstCell(Cell cell) { 
         this.firstCell = cell; 
+        this.spillPosition = -1;
     }
 
     // Връща броя клетки в реда
@@ -0,0 +1,56 @@
+package core;
+
+import java.util.ArrayList;
+
+/**
+ * Поредица от съседни редове в таблицата.
+ * Когато е зададен бюджет за памет, клетките на блока може да са изнесени
+ * във файл - тогава редовете остават в блока, но без клетки.
+ */
+final class RowBlock {
+    final ArrayList<Row> rows;
+    /** false, ако поне един ред от блока е изнесен във файл. */
+    volatile boolean resident = true;
+    /** Приблизителният размер на заредените клетки в байтове. */
+    long bytes;
+    /** Дали размерът трябва да се изчисли наново след промяна. */
+    boolean stale;
+    /** Сумата от дължините на валидните записи на редовете във файла за изнасяне. */
+    long spillBytes;
+
+    RowBlock(int capacity) {
+        rows = new ArrayList<>(capacity);
+    }
+
+    // Добавя ред в края на блока
+    void add(Row row) {
+        rows.add(row);
+        row.block = this;
+    }
+
+    // Вмъква ред на дадена позиция в блока
+    void add(int index, Row row) {
+        rows.add(index, row);
+        row.block = this;
+    }
+
+    // Изчислява размера на заредените клетки
+    long measure() {
+        long size = 0;
+        for (Row row : rows) {
+            for (Cell cell = row.getFirstCell(); cell != null; cell = cell.getNextCell()) {
+                size += cell.estimateSize();
+            }
+        }
+        return size;
+    }
+
+    // Изчислява сумата от дължините на валидните записи на редовете във файла
+    long measureSpill() {
+        long size = 0;
+        for (Row row : rows) {
+            if (row.getSpillPosition() >= 0) size += row.getSpillLength();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,66 @@
+package core;
+
+/**
+ * Условие върху една колона, по което се избират редове.
+ * Поддържа операторите =, !=, &lt;, &lt;=, &gt;, &gt;=.
+ * Ако стойността е число, сравнението е числово и нечисловите клетки не съвпадат;
+ * иначе се сравнява текстът, който клетката показва.
+ */
+public class RowFilter {
+    private int colIdx;
+    private String op;
+    private String text;
+    private double number;
+    private boolean numeric;
+
+    /**
+     * col - колона, започваща от 1
+     * op - оператор за сравнение
+     * value - стойност, с която се сравнява
+     */
+    public RowFilter(int col, String op, String value) {
+        if (col < 1) throw new IllegalArgumentException("Columns start from 1");
+        if (!op.equals("=") && !op.equals("!=") && !op.equals("<") && !op.equals("<=")
+                && !op.equals(">") && !op.equals(">=")) {
+            throw new IllegalArgumentException("Unknown operator: " + op);
+        }
+        this.colIdx = col - 1;
+        this.op = op;
+        this.text = value;
+        this.number = NumberParser.toDouble(value);
+        this.numeric = !Double.isNaN(number);
+    }
+
+    /**
+     * Проверява дали редът, започващ с firstCell, отговаря на условието.
+     * Формулите се изчисляват спрямо source.
+     */
+    public boolean matches(CellSource source, Cell firstCell) {
+        Cell cell = firstCell;
+        for (int i = 0; cell != null && i < colIdx; i++) {
+            cell = cell.getNextCell();
+        }
+        if (numeric) {
+            if (cell == null || (cell instanceof StringCell && !((StringCell) cell).isNumeric())) {
+                return op.equals("!=");
+            }
+            double value = cell.getValue(source);
+            if (Double.isNaN(value)) return op.equals("!=");
+            return test(Double.compare(value, number));
+        }
+        String display = cell != null ? cell.getDisplay(source) : "";
+        return test(display.compareTo(text));
+    }
+
+    /** Превръща резултата от сравнението в отговор според оператора. */
+    private boolean test(int comparison) {
+        switch (op) {
+            case "=": return comparison == 0;
+            case "!=": return comparison != 0;
+            case "<": return comparison < 0;
+            case "<=": return comparison <= 0;
+            case ">": return comparison > 0;
+            default: return comparison >= 0;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package core;
+
+import java.util.Arrays;
+
+/**
+ * Изчислява реда на редовете при сортиране по колона.
+ * Ключовете се извличат в масив от double (текстовите клетки дават числото
+ * си или 0, както StringCell.getValue()), а се сортират примитивни масиви
+ * с Arrays.parallelSort. Сортирането е стабилно - равните ключове
+ * запазват първоначалния си ред.
+ */
+public class RowSorter {
+
+    private RowSorter() {
+    }
+
+    /**
+     * Връща пермутацията: order[i] е индексът на реда, който застава на позиция i.
+     * colIdx е 0-базиран; липсващите клетки се сортират като 0.
+     */
+    public static int[] sortOrder(TableSnapshot snapshot, int colIdx, boolean descending) {
+        int n = snapshot.getHeight();
+        long[] keys = new long[n];
+        for (int r = 0; r < n; r++) {
+            Cell cell = snapshot.getFirstCell(r);
+            for (int i = 0; cell != null && i < colIdx; i++) {
+                cell = cell.getNextCell();
+            }
+            keys[r] = sortableBits(cell != null ? cell.getValue(snapshot) : 0.0);
+        }
+
+        // Всеки ключ се заменя с ранга си, за да се побере заедно с индекса в един long
+        long[] sorted = keys.clone();
+        Arrays.parallelSort(sorted);
+        long[] packed = new long[n];
+        for (int r = 0; r < n; r++) {
+            long rank = Arrays.binarySearch(sorted, keys[r]);
+            if (descending) rank = n - 1 - rank;
+            packed[r] = rank << 32 | r;
+        }
+        Arrays.parallelSort(packed);
+
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (int) packed[i];
+        }
+        return order;
+    }
+
+    /**
+     * Превръща double в long със същата наредба (NaN е най-голям).
+     */
+    private static long sortableBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+}
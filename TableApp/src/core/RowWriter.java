@@ -0,0 +1,21 @@
+package core;
+
+/**
+ * Формат за експортиране на таблицата, ред по ред.
+ * Стойностите на формулите се изчисляват върху снимката.
+ * Нови формати се добавят чрез ExportManager.registerFormat.
+ */
+public interface RowWriter {
+
+    /**
+     * Извиква се веднъж преди първия ред, напр. за да се изчислят ширините на колоните.
+     */
+    default void prepare(TableSnapshot snapshot) {
+    }
+
+    /**
+     * Добавя един ред в sb, завършен със знак за нов ред.
+     * Може да се извиква едновременно от няколко нишки за различни редове.
+     */
+    void appendRow(StringBuilder sb, TableSnapshot snapshot, Cell firstCell);
+}
@@ -0,0 +1,231 @@
+package core;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Анализ на таблицата: брой клетки и приблизителна памет по тип,
+ * най-дългата верига от зависими формули, най-често реферираните клетки,
+ * редовете с най-много клетки и колоните с най-много памет.
+ * Клетките се обхождат веднъж (върху снимка); след това веригите се
+ * изчисляват само върху графа на формулите.
+ */
+public class SheetAnalyzer {
+    /** Колко елемента се показват във всеки списък с най-големи стойности. */
+    private static final int TOP = 5;
+    /** Маркер за формула, чиято дълбочина се изчислява в момента (за откриване на цикли). */
+    private static final int IN_PROGRESS = -1;
+
+    private static final String[] TYPE_NAMES = {"IntegerCell", "DoubleCell", "StringCell", "FormulaCell"};
+
+    private SheetAnalyzer() {
+    }
+
+    /**
+     * Анализира снимката с едно обхождане на клетките.
+     */
+    public static Report analyze(TableSnapshot snapshot) {
+        Report report = new Report();
+        report.rows = snapshot.getHeight();
+        List<Long> columnBytes = new ArrayList<>();
+        Map<Long, Integer> referenceCounts = new HashMap<>();
+        Map<Long, int[]> formulas = new HashMap<>();
+        PriorityQueue<long[]> widestRows = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+
+        for (int r = 0; r < report.rows; r++) {
+            int col = 0;
+            for (Cell cell = snapshot.getFirstCell(r); cell != null; cell = cell.getNextCell()) {
+                int type = typeOf(cell);
+                long size = cell.estimateSize();
+                report.counts[type]++;
+                report.bytes[type] += size;
+                if (col == columnBytes.size()) columnBytes.add(0L);
+                columnBytes.set(col, columnBytes.get(col) + size);
+                col++;
+                if (cell instanceof FormulaCell) {
+                    int[] refs = ((FormulaCell) cell).getReferences();
+                    formulas.put(key(r + 1, col), refs);
+                    for (int i = 0; i < refs.length; i += 2) {
+                        referenceCounts.merge(key(refs[i], refs[i + 1]), 1, Integer::sum);
+                    }
+                }
+            }
+            offer(widestRows, col, r + 1);
+        }
+
+        longestChain(formulas, report);
+        report.widestRows = drain(widestRows);
+
+        PriorityQueue<long[]> referenced = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        for (Map.Entry<Long, Integer> entry : referenceCounts.entrySet()) {
+            offer(referenced, entry.getValue(), entry.getKey());
+        }
+        report.mostReferenced = drain(referenced);
+
+        PriorityQueue<long[]> heaviestColumns = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        for (int c = 0; c < columnBytes.size(); c++) {
+            offer(heaviestColumns, columnBytes.get(c), c + 1);
+        }
+        report.heaviestColumns = drain(heaviestColumns);
+        return report;
+    }
+
+    /**
+     * Намира най-дългата верига от формули, всяка от които сочи към следващата.
+     * Използва се явен стек, за да не препълни стека на нишката при дълги вериги.
+     * Препратка към формула, която още се изчислява, означава цикъл.
+     */
+    private static void longestChain(Map<Long, int[]> formulas, Report report) {
+        Map<Long, Integer> depth = new HashMap<>();
+        Deque<Long> stack = new ArrayDeque<>();
+        for (Long start : formulas.keySet()) {
+            if (depth.containsKey(start)) continue;
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                long node = stack.peek();
+                int[] refs = formulas.get(node);
+                Integer state = depth.get(node);
+                if (state == null) {
+                    // Първо посещение - изчисляваме зависимостите преди самата формула
+                    depth.put(node, IN_PROGRESS);
+                    for (int i = 0; i < refs.length; i += 2) {
+                        long target = key(refs[i], refs[i + 1]);
+                        if (formulas.containsKey(target) && !depth.containsKey(target)) {
+                            stack.push(target);
+                        }
+                    }
+                    continue;
+                }
+                stack.pop();
+                if (state != IN_PROGRESS) continue;
+                int longest = 0;
+                for (int i = 0; i < refs.length; i += 2) {
+                    Integer child = depth.get(key(refs[i], refs[i + 1]));
+                    if (child == null) continue; // не е формула
+                    if (child == IN_PROGRESS) {
+                        report.cyclicReferences++;
+                        continue;
+                    }
+                    longest = Math.max(longest, child);
+                }
+                depth.put(node, longest + 1);
+                if (longest + 1 > report.longestChain) {
+                    report.longestChain = longest + 1;
+                    report.chainEnd = node;
+                }
+            }
+        }
+    }
+
+    private static int typeOf(Cell cell) {
+        if (cell instanceof IntegerCell) return 0;
+        if (cell instanceof DoubleCell) return 1;
+        if (cell instanceof FormulaCell) return 3;
+        return 2;
+    }
+
+    /** Ключ на клетка по ред и колона (започващи от 1). */
+    private static long key(int row, int col) {
+        return (long) row << 32 | col;
+    }
+
+    private static String cellName(long key) {
+        return "R" + (key >>> 32) + "C" + (int) key;
+    }
+
+    /** Добавя стойност в опашката, като пази само TOP най-големи. */
+    private static void offer(PriorityQueue<long[]> top, long value, long id) {
+        if (top.size() < TOP) {
+            top.add(new long[]{value, id});
+        } else if (value > top.peek()[0]) {
+            top.poll();
+            top.add(new long[]{value, id});
+        }
+    }
+
+    /** Връща елементите на опашката от най-голям към най-малък. */
+    private static List<long[]> drain(PriorityQueue<long[]> top) {
+        List<long[]> result = new ArrayList<>();
+        while (!top.isEmpty()) {
+            result.add(0, top.poll());
+        }
+        return result;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    /**
+     * Резултатът от анализа.
+     */
+    public static final class Report {
+        private int rows;
+        private final long[] counts = new long[TYPE_NAMES.length];
+        private final long[] bytes = new long[TYPE_NAMES.length];
+        private int longestChain;
+        private long chainEnd;
+        private int cyclicReferences;
+        private List<long[]> widestRows;
+        private List<long[]> mostReferenced;
+        private List<long[]> heaviestColumns;
+
+        /** Общият брой клетки. */
+        public long getCellCount() {
+            long total = 0;
+            for (long count : counts) total += count;
+            return total;
+        }
+
+        /** Дължината на най-дългата верига от зависими формули. */
+        public int getLongestChain() {
+            return longestChain;
+        }
+
+        /**
+         * Извежда отчета в out.
+         */
+        public void print(PrintStream out) {
+            long totalBytes = 0;
+            for (long size : bytes) totalBytes += size;
+            out.println("Rows: " + rows + ", cells: " + getCellCount()
+                    + ", estimated size: " + formatBytes(totalBytes));
+            for (int t = 0; t < TYPE_NAMES.length; t++) {
+                out.printf(Locale.ROOT, "  %-12s %10d cells %12s%n", TYPE_NAMES[t], counts[t], formatBytes(bytes[t]));
+            }
+            if (longestChain > 0) {
+                out.println("Longest formula chain: " + longestChain + " (ends at " + cellName(chainEnd) + ")");
+            } else {
+                out.println("Longest formula chain: 0");
+            }
+            if (cyclicReferences > 0) {
+                out.println("Cyclic references: " + cyclicReferences);
+            }
+            StringBuilder line = new StringBuilder("Most referenced cells:");
+            for (long[] entry : mostReferenced) {
+                line.append(' ').append(cellName(entry[1])).append(" (").append(entry[0]).append(')');
+            }
+            out.println(line);
+            line = new StringBuilder("Rows with most cells:");
+            for (long[] entry : widestRows) {
+                if (entry[0] == 0) continue;
+                line.append(" R").append(entry[1]).append(" (").append(entry[0]).append(')');
+            }
+            out.println(line);
+            line = new StringBuilder("Columns by estimated size:");
+            for (long[] entry : heaviestColumns) {
+                line.append(" C").append(entry[1]).append(" (").append(formatBytes(entry[0])).append(')');
+            }
+            out.println(line);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Временен файл, в който се изнасят клетките на редове, които не се побират
+ * в бюджета за памет. Записите само се добавят в края на файла, затова
+ * снимка може да чете стари записи, докато таблицата продължава да се променя.
+ *
+ * Всеки ред се кодира компактно: брой клетки, а за всяка клетка - байт за типа
+ * и стойността (цели числа като varint, дробни като 8 байта, текст и формули
+ * като дължина и UTF-8 байтове).
+ *
+ * Записите на променени или изтрити редове остават във файла като мъртви байтове.
+ * Когато те станат твърде много, живите записи се пренасят в нов файл (вж. compact).
+ * Старият файл не се променя и се затваря едва когато никоя снимка не го използва.
+ */
+final class SpillFile {
+    private static final int STRING = 0;
+    private static final int INTEGER = 1;
+    private static final int DOUBLE = 2;
+    private static final int FORMULA = 3;
+
+    /** Затваря файловете, заменени при compact, когато вече никой не ги използва. */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /** Таблицата, към която сочат прочетените формули. */
+    private final Spreadsheet owner;
+    private volatile FileChannel channel;
+    private long end;
+
+    SpillFile(Spreadsheet owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Записва с едно писане в края на файла клетките на заредените редове,
+     * които нямат валиден запис, и запомня в тях позицията на записа.
+     */
+    synchronized void write(List<Row> rows) throws IOException {
+        Encoder out = new Encoder();
+        long[] starts = new long[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            starts[i] = -1;
+            if (row.getFirstCell() == null || row.getSpillPosition() >= 0) continue;
+            starts[i] = out.size();
+            encode(row.getFirstCell(), out);
+        }
+        if (out.size() == 0) return;
+
+        long start = append(out);
+        long next = out.size();
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            if (starts[i] < 0) continue;
+            rows.get(i).setSpill(start + starts[i], (int) (next - starts[i]));
+            next = starts[i];
+        }
+    }
+
+    /**
+     * Връща размера на файла в байтове - живите и мъртвите записи.
+     */
+    synchronized long size() {
+        return end;
+    }
+
+    /**
+     * Копира валидните записи на редовете от blocks в нов файл, пренасочва
+     * редовете към него и го връща. Този файл не се променя, за да могат
+     * снимките, които сочат към него, да продължат да го четат; затваря се,
+     * когато стане недостъпен. Ако копирането не успее, редовете не се променят.
+     */
+    synchronized SpillFile compact(List<RowBlock> blocks) throws IOException {
+        SpillFile target = new SpillFile(owner);
+        List<long[]> positions = new ArrayList<>(blocks.size());
+        for (RowBlock block : blocks) {
+            positions.add(target.copy(this, block.rows));
+        }
+        for (int b = 0; b < blocks.size(); b++) {
+            List<Row> rows = blocks.get(b).rows;
+            long[] starts = positions.get(b);
+            for (int i = 0; i < rows.size(); i++) {
+                if (starts[i] >= 0) rows.get(i).setSpill(starts[i], rows.get(i).getSpillLength());
+            }
+        }
+        if (channel != null) CLEANER.register(this, closer(channel));
+        return target;
+    }
+
+    /**
+     * Добавя в края на файла записите на редовете от файла source без да ги
+     * декодира и връща новите им позиции (-1 за редове без запис).
+     */
+    private synchronized long[] copy(SpillFile source, List<Row> rows) throws IOException {
+        long from = Long.MAX_VALUE;
+        long to = 0;
+        long total = 0;
+        for (Row row : rows) {
+            if (row.getSpillPosition() < 0) continue;
+            from = Math.min(from, row.getSpillPosition());
+            to = Math.max(to, row.getSpillPosition() + row.getSpillLength());
+            total += row.getSpillLength();
+        }
+        long[] starts = new long[rows.size()];
+        Arrays.fill(starts, -1);
+        if (total == 0) return starts;
+
+        // Записите на един блок обикновено са един до друг и се четат наведнъж
+        ByteBuffer region = to - from <= 2 * total ? source.read(from, (int) (to - from)) : null;
+        Encoder out = new Encoder();
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            if (row.getSpillPosition() < 0) continue;
+            starts[i] = out.size();
+            if (region != null) {
+                out.write(region.array(), (int) (row.getSpillPosition() - from), row.getSpillLength());
+            } else {
+                out.write(source.read(row.getSpillPosition(), row.getSpillLength()).array(), 0, row.getSpillLength());
+            }
+        }
+        long start = append(out);
+        for (int i = 0; i < starts.length; i++) {
+            if (starts[i] >= 0) starts[i] += start;
+        }
+        return starts;
+    }
+
+    /** Записва буфера в края на файла (създава файла при нужда) и връща позицията, от която започва. */
+    private long append(Encoder out) throws IOException {
+        if (channel == null) {
+            Path path = Files.createTempFile("table", ".spill");
+            path.toFile().deleteOnExit();
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        long start = end;
+        long position = end;
+        ByteBuffer buffer = ByteBuffer.wrap(out.bytes(), 0, out.size());
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        end = position;
+        return start;
+    }
+
+    /** Действие, което затваря (и така изтрива) файла. Не сочи към SpillFile, за да не го държи жив. */
+    private static Runnable closer(FileChannel file) {
+        return () -> {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Файлът е временен и се изтрива и при изход
+            }
+        };
+    }
+
+    /**
+     * Чете length байта от дадена позиция. Може да се извиква от няколко нишки.
+     */
+    ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        FileChannel file = channel;
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Spill file is truncated");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Декодира един ред, започващ от текущата позиция в буфера,
+     * и връща първата му клетка.
+     */
+    Cell decode(ByteBuffer in) {
+        int count = (int) readVarLong(in);
+        Cell first = null;
+        Cell last = null;
+        for (int i = 0; i < count; i++) {
+            Cell cell;
+            int type = in.get();
+            if (type == INTEGER) {
+                long zigzag = readVarLong(in);
+                cell = new IntegerCell((zigzag >>> 1) ^ -(zigzag & 1));
+            } else if (type == DOUBLE) {
+                cell = new DoubleCell(in.getDouble());
+            } else {
+                String text = readString(in);
+                cell = type == FORMULA ? new FormulaCell(text, owner) : new StringCell(text);
+            }
+            if (last == null) {
+                first = cell;
+            } else {
+                last.setNextCell(cell);
+            }
+            last = cell;
+        }
+        return first;
+    }
+
+    /** Кодира клетките на един ред. */
+    private static void encode(Cell first, Encoder out) {
+        int count = 0;
+        for (Cell cell = first; cell != null; cell = cell.getNextCell()) {
+            count++;
+        }
+        out.writeVarLong(count);
+        for (Cell cell = first; cell != null; cell = cell.getNextCell()) {
+            if (cell instanceof IntegerCell) {
+                long value = ((IntegerCell) cell).longValue();
+                out.write(INTEGER);
+                out.writeVarLong((value << 1) ^ (value >> 63));
+            } else if (cell instanceof DoubleCell) {
+                out.write(DOUBLE);
+                long bits = Double.doubleToRawLongBits(cell.getValue());
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) (bits >>> shift));
+                }
+            } else if (cell instanceof FormulaCell) {
+                out.write(FORMULA);
+                out.writeString(((FormulaCell) cell).getFormula());
+            } else {
+                out.write(STRING);
+                out.writeString(cell.getDisplay());
+            }
+        }
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        String text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return text;
+    }
+
+    /** Буфер в паметта, който дава достъп до масива си без копиране. */
+    private static final class Encoder extends ByteArrayOutputStream {
+        Encoder() {
+            super(8192);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeString(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -1,140 +1,955 @@
 package core;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Основен клас, който координира работата на електронната таблица.
  * Сега има по-малко отговорности - само координира другите мениджъри.
+ *
+ * Таблицата може да се използва от няколко нишки едновременно.
+ * Структурното заключване пази списъка с редове: четене и редакция на
+ * съществуващ ред го държат за четене, а добавяне на ред, зареждане,
+ * undo/redo и снимки - за писане. Всеки ред се пази от една от няколко
+ * ленти (striped) ключалки, така че четенията не се блокират взаимно,
+ * а редакции на различни редове вървят паралелно.
  */
-public class Spreadsheet {
+public class Spreadsheet implements CellSource {
+    /** Брой ленти за заключване на редове; трябва да е степен на 2. */
+    private static final int STRIPES = 64;
+
     private TableManager tableManager;
     private FileManager fileManager;
     private DisplayManager displayManager;
+    private HistoryManager historyManager;
+    private AutosaveManager autosaveManager;
+    private QueryManager queryManager;
+    private ExportManager exportManager;
+    private LookupIndex lookupIndex;
+    private DependencyIndex dependencyIndex;
+    /** Дали dependencyIndex отговаря на формулите в таблицата; строи се при първа нужда. */
+    private volatile boolean dependenciesValid;
+    /** Работната книга, в която е таблицата, или null за самостоятелна таблица. */
+    private volatile Workbook workbook;
+
+    private final ReentrantReadWriteLock structureLock = new ReentrantReadWriteLock();
+    private final ReadWriteLock[] rowLocks = new ReadWriteLock[STRIPES];
+
+    /** Номерът на последното преномериране на редове или колони (под structureLock). */
+    private long movesApplied;
+    /** Номерът на последното преномериране, съобщено на работната книга (под publishLock). */
+    private long movesPublished;
+    private final Object publishLock = new Object();
+    /** Номер на таблицата за запазените стойности на формулите (вж. CellSource.cacheId). */
+    private final long cacheId = FormulaCell.newCacheId();
+
+    /** Брой промени от създаването на таблицата. */
+    private final AtomicLong changeCount = new AtomicLong();
+    /** Стойността на changeCount при последния запис или зареждане. */
+    private volatile long savedChangeCount;
 
     /**
-     * Конструктор, който инициализира мениджърите.
+     * Конструктор, който инициализира мениджърите, нужни при всяка редакция.
+     * Мениджърите за файлове, показване и заявки се създават при първата им употреба,
+     * за да не забавят стартирането на кратки скриптове.
      */
     public Spreadsheet() {
         this.tableManager = new TableManager();
-        this.fileManager = new FileManager(tableManager);
-        this.displayManager = new DisplayManager(tableManager);
+        this.historyManager = new HistoryManager(tableManager, new HistoryListener());
+        this.lookupIndex = new LookupIndex();
+        this.dependencyIndex = new DependencyIndex();
+        for (int i = 0; i < STRIPES; i++) {
+            rowLocks[i] = new ReentrantReadWriteLock();
+        }
     }
 
     /**
      * Зарежда таблица от файл.
      */
     public void loadFromFile(String filePath) throws IOException {
-        fileManager.loadFromFile(filePath);
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            fileManager().loadFromFile(filePath);
+            historyManager.clear();
+            lookupIndex.clear();
+            invalidateDependencies();
+            markReplaced();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Записва текущата таблица във файла, от който е заредена.
      */
     public void save() throws IOException {
-        fileManager.save();
+        String filePath = fileManager().getCurrentFile();
+        if (filePath == null) throw new IOException("No file loaded");
+        saveAs(filePath);
     }
 
     /**
      * Записва текущата таблица в нов файл.
+     * Под заключване се взима само снимката, а файлът се пише без да спира редакциите.
      */
     public void saveAs(String filePath) throws IOException {
-        fileManager.saveAs(filePath);
+        Lock lock = structureLock.writeLock();
+        long[] version = new long[1];
+        TableSnapshot snapshot = snapshot(() -> version[0] = changeCount.get());
+        // Ако е пропуснат, файлът вече съдържа по-нова версия от тази
+        fileManager().writeSnapshot(snapshot, filePath, version[0]);
+        lock.lock();
+        try {
+            fileManager().setCurrentFile(filePath);
+            markSaved(version[0]);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Отпечатва съдържанието на таблицата в конзолата.
      */
     public void print() {
-        displayManager.print();
+        print(System.out);
+    }
+
+    /**
+     * Отпечатва съдържанието на таблицата в подадения поток.
+     */
+    public void print(PrintStream out) {
+        displayManager().print(snapshot(), out);
+    }
+
+    /**
+     * Извежда редовете, отговарящи на условието, в out. Връща броя им.
+     */
+    public int select(RowFilter filter, PrintStream out) {
+        return queryManager().select(snapshot(), filter, out);
+    }
+
+    /**
+     * Записва редовете, отговарящи на условието, във файл. Връща броя им.
+     */
+    public int select(RowFilter filter, String filePath) throws IOException {
+        return queryManager().select(snapshot(), filter, filePath);
+    }
+
+    /**
+     * Експортира изчислените стойности във файл в даден формат (tsv, jsonl, fixed).
+     * Връща броя на записаните редове.
+     */
+    public int export(String format, String filePath) throws IOException {
+        return exportManager().export(snapshot(), format, filePath);
+    }
+
+    /**
+     * Извежда в out отчет за паметта и зависимостите в таблицата.
+     */
+    public void analyze(PrintStream out) {
+        SheetAnalyzer.analyze(snapshot()).print(out);
+    }
+
+    /**
+     * Създава неизменяема снимка на таблицата за четене, докато редакциите продължават.
+     */
+    public TableSnapshot snapshot() {
+        return snapshot(() -> { });
+    }
+
+    /**
+     * Взима снимка под изключително заключване и изпълнява underLock, докато
+     * то се държи. Ако таблицата е в книга, снимките на всички таблици се
+     * взимат заедно (вж. Workbook.snapshot), за да виждат формулите с
+     * препратки към други таблици едно и също състояние.
+     */
+    private TableSnapshot snapshot(Runnable underLock) {
+        Workbook book = workbook;
+        if (book != null) return book.snapshot(this, underLock);
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            underLock.run();
+            return tableManager.snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Заключва таблицата за Workbook.snapshot. Ако timeoutMs е 0, чака без ограничение.
+     * Връща false, ако заключването не е взето за timeoutMs милисекунди.
+     */
+    boolean lockForSnapshot(long timeoutMs) throws InterruptedException {
+        Lock lock = structureLock.writeLock();
+        if (timeoutMs > 0) return lock.tryLock(timeoutMs, TimeUnit.MILLISECONDS);
+        lock.lockInterruptibly();
+        return true;
+    }
+
+    /** Освобождава заключването от lockForSnapshot. */
+    void unlockForSnapshot() {
+        structureLock.writeLock().unlock();
+    }
+
+    /** Взима снимка, свързана със снимките на другите таблици; заключването трябва да се държи. */
+    TableSnapshot snapshotLocked(Map<String, TableSnapshot> sheets) {
+        TableSnapshot snapshot = tableManager.snapshot();
+        snapshot.setSheets(sheets);
+        return snapshot;
     }
 
     /**
      * Изчиства цялата таблица и забравя името на текущия файл.
      */
     public void close() {
-        tableManager.clear();
-        fileManager.clearCurrentFile();
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            tableManager.clear();
+            fileManager().clearCurrentFile();
+            historyManager.clear();
+            lookupIndex.clear();
+            invalidateDependencies();
+            markReplaced();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Редактира съдържанието на една клетка.
+     * Ако редът е с един след последния, се добавя нов ред;
+     * ако колоната е след края на реда, редът се допълва с празни клетки.
      */
     public void edit(int row, int col, String value) {
         int rowIdx = row - 1;
         int colIdx = col - 1;
-
-        ensureCellCapacity(rowIdx, colIdx);
-        Row currentRow = tableManager.getRow(rowIdx);
+        if (rowIdx < 0 || colIdx < 0) {
+            throw new IndexOutOfBoundsException("Rows and columns start from 1");
+        }
         Cell newCell = Cell.createCell(value, this);
-        Cell prev = null;
-        Cell current = currentRow.getFirstCell();
-        int i = 0;
-        while (current != null && i < colIdx) {
-            prev = current;
-            current = current.getNextCell();
-            i++;
-        }
-        if (i == colIdx) {
-            if (prev == null) {
-                newCell.setNextCell(current != null ? current.getNextCell() : null);
-                currentRow.setFirstCell(newCell);
-            } else {
-                newCell.setNextCell(current != null ? current.getNextCell() : null);
-                prev.setNextCell(newCell);
+
+        // Обикновеният случай - редът съществува и се заключва само неговата лента
+        Lock structure = structureLock.readLock();
+        boolean edited = false;
+        structure.lock();
+        try {
+            int height = tableManager.getActualHeight();
+            if (rowIdx < height) {
+                Lock rowLock = rowLock(rowIdx).writeLock();
+                rowLock.lock();
+                try {
+                    applyEdit(rowIdx, colIdx, height, newCell);
+                    edited = true;
+                } finally {
+                    rowLock.unlock();
+                }
+            }
+        } finally {
+            structure.unlock();
+        }
+        if (edited) {
+            trimIfNeeded();
+            return;
+        }
+
+        // Нужен е нов ред - списъкът с редове се променя изключително
+        structure = structureLock.writeLock();
+        structure.lock();
+        try {
+            int height = tableManager.getActualHeight();
+            if (rowIdx > height) {
+                throw new IndexOutOfBoundsException("Row " + row + " is after the end of the table");
+            }
+            if (rowIdx == height) {
+                tableManager.addRow();
             }
+            applyEdit(rowIdx, colIdx, height, newCell);
+            if (tableManager.needsTrim()) tableManager.trim();
+        } finally {
+            structure.unlock();
+        }
+    }
+
+    /** Поставя клетката на мястото ѝ и записва промяната в историята. */
+    private void applyEdit(int rowIdx, int colIdx, int rowsBefore, Cell newCell) {
+        Row currentRow = tableManager.getRowForWrite(rowIdx);
+        int cellsBefore = currentRow.getCellCount();
+        Cell oldCell = null;
+        if (colIdx < cellsBefore) {
+            oldCell = currentRow.replaceCell(colIdx, newCell);
         } else {
-            if (prev == null) {
-                currentRow.setFirstCell(newCell);
-            } else {
-                prev.setNextCell(newCell);
+            currentRow.padTo(colIdx);
+            currentRow.addCell(newCell);
+            lookupIndex.onPadded(rowIdx, cellsBefore, colIdx);
+        }
+        lookupIndex.onEdit(rowIdx, colIdx, oldCell, newCell);
+        if (dependenciesValid && newCell instanceof FormulaCell) {
+            dependencyIndex.add(currentRow, (FormulaCell) newCell);
+        }
+        historyManager.record(rowIdx, colIdx, rowsBefore, cellsBefore, oldCell, newCell);
+        markChanged();
+    }
+
+    /**
+     * Вмъква празен ред на позиция row (започваща от 1); следващите редове се изместват надолу.
+     * Препратките към изместените редове се преномерират.
+     */
+    public void insertRow(int row) {
+        if (row < 1) throw new IndexOutOfBoundsException("Rows start from 1");
+        IntUnaryOperator rowMap = TableManager.insertMap(row);
+        long move;
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            if (row > tableManager.getActualHeight() + 1) {
+                throw new IndexOutOfBoundsException("Row " + row + " is after the end of the table");
+            }
+            List<Row> holders = dependencies().holdersFromRow(row);
+            tableManager.insertRow(row - 1);
+            rewriteReferences(holders, null, rowMap, c -> c, null);
+            historyManager.recordInsert(false, row - 1);
+            afterStructuralChange();
+            move = nextMove();
+        } finally {
+            lock.unlock();
+        }
+        publishMove(move, rowMap, c -> c);
+    }
+
+    /**
+     * Изтрива ред (започващ от 1); следващите редове се изместват нагоре.
+     * Препратките към изтрития ред стават #REF, а тези към следващите се преномерират.
+     */
+    public void deleteRow(int row) {
+        if (row < 1) throw new IndexOutOfBoundsException("Rows start from 1");
+        IntUnaryOperator rowMap = TableManager.deleteMap(row);
+        long move;
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            if (row > tableManager.getActualHeight()) {
+                throw new IndexOutOfBoundsException("Row " + row + " does not exist");
             }
+            List<Row> holders = dependencies().holdersFromRow(row);
+            Row removed = tableManager.deleteRow(row - 1);
+            dependencyIndex.removeRow(removed);
+            holders.remove(removed);
+            HistoryManager.BrokenReferences broken = new HistoryManager.BrokenReferences();
+            rewriteReferences(holders, null, rowMap, c -> c, broken);
+            historyManager.recordDeleteRow(row - 1, removed, broken);
+            afterStructuralChange();
+            move = nextMove();
+        } finally {
+            lock.unlock();
+        }
+        publishMove(move, rowMap, c -> c);
+    }
+
+    /**
+     * Вмъква празна колона на позиция col (започваща от 1); следващите клетки се изместват надясно.
+     * Препратките към изместените колони се преномерират.
+     */
+    public void insertColumn(int col) {
+        if (col < 1) throw new IndexOutOfBoundsException("Columns start from 1");
+        IntUnaryOperator colMap = TableManager.insertMap(col);
+        long move;
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            List<Row> holders = dependencies().holdersFromColumn(col);
+            tableManager.insertColumn(col - 1);
+            rewriteReferences(holders, null, r -> r, colMap, null);
+            historyManager.recordInsert(true, col - 1);
+            afterStructuralChange();
+            move = nextMove();
+        } finally {
+            lock.unlock();
+        }
+        publishMove(move, r -> r, colMap);
+    }
+
+    /**
+     * Изтрива колона (започваща от 1); следващите клетки се изместват наляво.
+     * Препратките към изтритата колона стават #REF, а тези към следващите се преномерират.
+     */
+    public void deleteColumn(int col) {
+        if (col < 1) throw new IndexOutOfBoundsException("Columns start from 1");
+        IntUnaryOperator colMap = TableManager.deleteMap(col);
+        long move;
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            List<Row> holders = dependencies().holdersFromColumn(col);
+            Cell[] removed = tableManager.deleteColumn(col - 1);
+            HistoryManager.BrokenReferences broken = new HistoryManager.BrokenReferences();
+            rewriteReferences(holders, null, r -> r, colMap, broken);
+            historyManager.recordDeleteColumn(col - 1, removed, broken);
+            afterStructuralChange();
+            move = nextMove();
+        } finally {
+            lock.unlock();
+        }
+        publishMove(move, r -> r, colMap);
+    }
+
+    /**
+     * Връща индекса на зависимостите, като го строи с едно обхождане, ако не е актуален.
+     * Трябва да се извиква под изключително заключване.
+     */
+    private DependencyIndex dependencies() {
+        if (!dependenciesValid) {
+            dependencyIndex.clear();
+            tableManager.forEachRow(dependencyIndex::update);
+            dependenciesValid = true;
+        }
+        return dependencyIndex;
+    }
+
+    /** Отбелязва, че индексът на зависимостите трябва да се построи наново. */
+    private void invalidateDependencies() {
+        dependenciesValid = false;
+        dependencyIndex.clear();
+    }
+
+    /**
+     * Преномерира препратките само във формулите на дадените редове.
+     * sheet е името на таблицата, към която сочат препратките (null - тази таблица).
+     * Ако broken не е null, в него се записват формулите, които получават #REF.
+     */
+    private void rewriteReferences(List<Row> holders, String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap,
+                                   HistoryManager.BrokenReferences broken) {
+        for (Row holder : holders) {
+            TableManager.RemapListener listener = null;
+            if (broken != null) {
+                listener = (position, oldCell, newCell) -> {
+                    if (newCell.getFormula().contains(FormulaCell.REF_ERROR)) {
+                        broken.add(tableManager.indexOf(holder), position, oldCell);
+                    }
+                };
+            }
+            tableManager.remapReferences(holder, sheet, rowMap, colMap, listener);
+            dependencyIndex.update(holder);
+            if (tableManager.needsTrim()) tableManager.trim();
+        }
+    }
+
+    /**
+     * Поддържа индекса на зависимостите при undo/redo. Вмъкване и изтриване се
+     * отменят като правите операции - преписват се само редовете, които индексът
+     * сочи, а не всички формули в таблицата.
+     */
+    private final class HistoryListener implements HistoryManager.Listener {
+        @Override
+        public void rowChanged(Row row) {
+            if (dependenciesValid) dependencyIndex.update(row);
+        }
+
+        @Override
+        public void rowRemoved(Row row) {
+            if (dependenciesValid) dependencyIndex.removeRow(row);
+        }
+
+        @Override
+        public void moveReferences(boolean columns, int number, IntUnaryOperator map) {
+            IntUnaryOperator rowMap = columns ? r -> r : map;
+            IntUnaryOperator colMap = columns ? map : c -> c;
+            List<Row> holders = columns
+                    ? dependencies().holdersFromColumn(number) : dependencies().holdersFromRow(number);
+            rewriteReferences(holders, null, rowMap, colMap, null);
+            tableManager.recordMove(rowMap, colMap);
+        }
+
+        @Override
+        public void reordered() {
+            // Всички формули са преписани; индексът се строи наново при нужда
+            invalidateDependencies();
+        }
+    }
+
+    /**
+     * Преномерира препратките към друга таблица (Sheet2!R1C1), след като в нея
+     * са вмъкнати, изтрити или пренаредени редове или колони.
+     * Преглеждат се само редовете, които индексът на зависимостите сочи.
+     * Историята се запазва, защото позициите в тази таблица не се променят,
+     * но препратките в записаните в нея клетки също се преномерират.
+     */
+    void rewriteSheetReferences(String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            // Препратките на таблицата към самата нея следват собствената ѝ история
+            if (getSheet(sheet) != this) {
+                historyManager.remapReferences(sheet, rowMap, colMap);
+            }
+            List<Row> holders = dependencies().holdersOfSheet(sheet);
+            if (holders.isEmpty()) return;
+            rewriteReferences(holders, sheet, rowMap, colMap, null);
+            tableManager.trim();
+            markChanged();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Връща поредния номер на преномериране. Извиква се под изключителното
+     * заключване като последна стъпка, така че номерата следват реда, в който
+     * промените са приложени, и всеки номер задължително се съобщава.
+     */
+    private long nextMove() {
+        return ++movesApplied;
+    }
+
+    /**
+     * Съобщава на работната книга, че редовете или колоните на таблицата са
+     * преномерирани. Извиква се без заключване, защото другите таблици се
+     * заключват поотделно. Преномериранията не са разместваеми, затова всяко
+     * изчаква предишните (по номер) да бъдат съобщени - иначе две едновременни
+     * структурни промени може да стигнат до другите таблици в обратен ред.
+     * Докато чака, нишката не държи заключване на таблица.
+     */
+    private void publishMove(long move, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        boolean interrupted = false;
+        synchronized (publishLock) {
+            while (movesPublished != move - 1) {
+                try {
+                    publishLock.wait();
+                } catch (InterruptedException e) {
+                    // Номерът трябва да се съобщи, иначе следващите ще чакат вечно
+                    interrupted = true;
+                }
+            }
+        }
+        try {
+            Workbook book = workbook;
+            if (book != null) book.referencesMoved(this, rowMap, colMap);
+        } finally {
+            synchronized (publishLock) {
+                movesPublished = move;
+                publishLock.notifyAll();
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Общи действия след вмъкване или изтриване на ред или колона
+     * (промяната вече е записана в историята).
+     */
+    private void afterStructuralChange() {
+        lookupIndex.clear();
+        tableManager.trim();
+        markChanged();
+    }
+
+    /**
+     * Сортира редовете по колона (започваща от 1).
+     * Препратките във формулите се преномерират, за да сочат към същите клетки.
+     */
+    public void sort(int col, boolean descending) {
+        if (col < 1) throw new IndexOutOfBoundsException("Columns start from 1");
+        IntUnaryOperator moved;
+        long move;
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            TableSnapshot snapshot = tableManager.snapshot();
+            if (snapshot.getHeight() < 2) return;
+            int[] order = RowSorter.sortOrder(snapshot, col - 1, descending);
+            tableManager.reorder(order);
+            moved = tableManager.takeMovedRows();
+            historyManager.recordReorder(order);
+            lookupIndex.clear();
+            invalidateDependencies();
+            tableManager.trim();
+            markChanged();
+            move = nextMove();
+        } finally {
+            lock.unlock();
+        }
+        publishMove(move, moved, c -> c);
+    }
+
+    /**
+     * Отменя последната редакция. Връща false, ако няма какво да се отмени.
+     */
+    public boolean undo() {
+        IntUnaryOperator moved;
+        IntUnaryOperator movedColumns;
+        long move;
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            if (!historyManager.undo()) return false;
+            moved = tableManager.takeMovedRows();
+            movedColumns = tableManager.takeMovedColumns();
+            lookupIndex.clear();
+            tableManager.trim();
+            markChanged();
+            move = moved != null || movedColumns != null ? nextMove() : 0;
+        } finally {
+            lock.unlock();
+        }
+        if (move > 0) {
+            publishMove(move, moved != null ? moved : r -> r, movedColumns != null ? movedColumns : c -> c);
+        }
+        return true;
+    }
+
+    /**
+     * Прилага отново последната отменена редакция. Връща false, ако няма такава.
+     */
+    public boolean redo() {
+        IntUnaryOperator moved;
+        IntUnaryOperator movedColumns;
+        long move;
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            if (!historyManager.redo()) return false;
+            moved = tableManager.takeMovedRows();
+            movedColumns = tableManager.takeMovedColumns();
+            lookupIndex.clear();
+            tableManager.trim();
+            markChanged();
+            move = moved != null || movedColumns != null ? nextMove() : 0;
+        } finally {
+            lock.unlock();
+        }
+        if (move > 0) {
+            publishMove(move, moved != null ? moved : r -> r, movedColumns != null ? movedColumns : c -> c);
+        }
+        return true;
+    }
+
+    /**
+     * Задава максималния размер на историята за undo/redo в байтове.
+     */
+    public void setHistoryBudget(long bytes) {
+        historyManager.setBudget(bytes);
+    }
+
+    /**
+     * Връща true, ако има промени след последния запис или зареждане.
+     */
+    public boolean isDirty() {
+        return changeCount.get() != savedChangeCount;
+    }
+
+    /** Връща мениджъра за файлове, като го създава при първо извикване. */
+    private synchronized FileManager fileManager() {
+        if (fileManager == null) {
+            fileManager = new FileManager(tableManager, this);
+        }
+        return fileManager;
+    }
+
+    /** Връща мениджъра за показване, като го създава при първо извикване. */
+    private synchronized DisplayManager displayManager() {
+        if (displayManager == null) {
+            displayManager = new DisplayManager(tableManager);
+        }
+        return displayManager;
+    }
+
+    /** Връща мениджъра за заявки, като го създава при първо извикване. */
+    private synchronized QueryManager queryManager() {
+        if (queryManager == null) {
+            queryManager = new QueryManager();
+        }
+        return queryManager;
+    }
+
+    /** Връща мениджъра за експортиране, като го създава при първо извикване. */
+    private synchronized ExportManager exportManager() {
+        if (exportManager == null) {
+            exportManager = new ExportManager();
+        }
+        return exportManager;
+    }
+
+    /**
+     * Включва автоматичен запис на всеки intervalSeconds секунди
+     * или след changeThreshold промени (0 изключва съответното условие).
+     */
+    public synchronized void enableAutosave(long intervalSeconds, int changeThreshold) {
+        if (autosaveManager == null) {
+            autosaveManager = new AutosaveManager(this);
+        }
+        autosaveManager.start(intervalSeconds, changeThreshold);
+    }
+
+    /**
+     * Изключва автоматичния запис.
+     */
+    public synchronized void disableAutosave() {
+        if (autosaveManager != null) {
+            autosaveManager.stop();
+        }
+    }
+
+    /**
+     * Връща грешката при последния неуспешен автоматичен запис, ако още не е
+     * съобщена, или null. Всяка грешка се връща само веднъж.
+     */
+    public synchronized IOException takeAutosaveFailure() {
+        return autosaveManager != null ? autosaveManager.takeFailure() : null;
+    }
+
+    /**
+     * Записва снимка на таблицата в текущия файл, ако има незаписани промени.
+     * Извиква се от нишката за автоматичен запис - под заключване се взима
+     * само снимката, а самият запис не блокира редакциите.
+     */
+    void autosave() throws IOException {
+        Lock lock = structureLock.writeLock();
+        String filePath;
+        lock.lock();
+        try {
+            filePath = fileManager().getCurrentFile();
+            if (filePath == null || !isDirty()) return;
+        } finally {
+            lock.unlock();
+        }
+        long[] version = new long[1];
+        TableSnapshot snapshot = snapshot(() -> version[0] = changeCount.get());
+        fileManager().writeSnapshot(snapshot, filePath, version[0]);
+        lock.lock();
+        try {
+            if (filePath.equals(fileManager().getCurrentFile())) {
+                markSaved(version[0]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Отбелязва, че е записано състоянието до дадена промяна. */
+    private void markSaved(long version) {
+        if (version > savedChangeCount) {
+            savedChangeCount = version;
+        }
+    }
+
+    /**
+     * Отбелязва, че данните са заменени изцяло (зареждане или затваряне)
+     * и няма незаписани промени.
+     */
+    private void markReplaced() {
+        savedChangeCount = changeCount.incrementAndGet();
+        Workbook book = workbook;
+        if (book != null) book.changed();
+    }
+
+    /** Отбелязва една промяна и уведомява автоматичния запис. */
+    private void markChanged() {
+        long count = changeCount.incrementAndGet();
+        Workbook book = workbook;
+        if (book != null) book.changed();
+        AutosaveManager autosave;
+        synchronized (this) {
+            autosave = autosaveManager;
+        }
+        if (autosave != null) {
+            autosave.onChange(count - savedChangeCount);
         }
     }
 
     /**
      * Връща клетка по координати (ред и колона, започващи от 1).
      */
+    @Override
     public Cell getCell(int row, int col) {
         int rowIdx = row - 1;
         int colIdx = col - 1;
-        if (rowIdx < 0 || colIdx < 0 || rowIdx >= tableManager.getActualHeight()) {
-            return null;
+        Lock structure = structureLock.readLock();
+        structure.lock();
+        try {
+            if (rowIdx < 0 || colIdx < 0 || rowIdx >= tableManager.getActualHeight()) {
+                return null;
+            }
+            Lock rowLock = rowLock(rowIdx).readLock();
+            rowLock.lock();
+            try {
+                Row currentRow = tableManager.getRow(rowIdx);
+                return currentRow.getCell(colIdx);
+            } finally {
+                rowLock.unlock();
+            }
+        } finally {
+            structure.unlock();
+            trimIfNeeded();
         }
-        Row currentRow = tableManager.getRow(rowIdx);
-        return currentRow.getCell(colIdx);
     }
 
-    /** Осигурява съществуването на достатъчно редове в таблицата. */
-    private void ensureRowCapacity(int rowIdx) {
-        if (rowIdx >= tableManager.getActualHeight()) {
-            tableManager.addRow();
+    /**
+     * Задава бюджет за клетките в паметта в байтове (0 - без ограничение).
+     * Блоковете над бюджета се изнасят във временен файл и се зареждат при нужда.
+     */
+    public void setMemoryBudget(long bytes) {
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            tableManager.setMemoryBudget(bytes, this);
+        } finally {
+            lock.unlock();
         }
     }
 
-    /** Осигурява съществуването на клетка на даден ред и колона. */
-    private void ensureCellCapacity(int rowIdx, int colIdx) {
-        ensureRowCapacity(rowIdx);
+    /**
+     * Изнася блокове над бюджета за памет, ако никоя друга нишка не използва
+     * таблицата в момента. Иначе това ще стане при следващата операция.
+     */
+    private void trimIfNeeded() {
+        if (!tableManager.needsTrim() || structureLock.getReadHoldCount() > 0
+                || structureLock.isWriteLockedByCurrentThread()) {
+            return;
+        }
+        Lock lock = structureLock.writeLock();
+        if (lock.tryLock()) {
+            try {
+                tableManager.trim();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Задава работната книга, в която е таблицата.
+     */
+    void setWorkbook(Workbook workbook) {
+        this.workbook = workbook;
+    }
 
-        Row currentRow = tableManager.getRow(rowIdx);
-        if (currentRow.getFirstCell() == null) {
-            currentRow.setFirstCell(new StringCell(""));
-        } else if (colIdx >= tableManager.getActualWidth()) {
-            Cell currentCell = currentRow.getFirstCell();
-            while (currentCell.getNextCell() != null) {
-                currentCell = currentCell.getNextCell();
+    /**
+     * Връща таблицата с дадено име от работната книга (за препратки като Sheet2!R1C1)
+     * или null, ако таблицата не е в книга или няма такава.
+     */
+    Spreadsheet getSheet(String name) {
+        Workbook book = workbook;
+        return book != null ? book.getSheet(name) : null;
+    }
+
+    /**
+     * Намира първия ред с дадения ключ в колона (за LOOKUP).
+     * Индексът на колоната се строи при първото търсене под изключително
+     * заключване и после се поддържа от edit. Колоните с формули се търсят
+     * в отделен индекс с изчислените им стойности (вж. findEvaluated).
+     */
+    @Override
+    public int findRow(int col, Object key) {
+        if (col < 1) return -1;
+        int colIdx = col - 1;
+        LookupIndex.ColumnIndex index = lookupIndex.get(colIdx);
+        if (index == null) {
+            Lock lock = structureLock.writeLock();
+            lock.lock();
+            try {
+                index = lookupIndex.get(colIdx);
+                if (index == null) {
+                    index = LookupIndex.build(tableManager, colIdx);
+                    lookupIndex.put(colIdx, index);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (index.hasFormulas()) {
+            return findEvaluated(colIdx, key);
+        }
+        int rowIdx;
+        synchronized (lookupIndex) {
+            rowIdx = index.find(key);
+        }
+        return rowIdx >= 0 ? rowIdx + 1 : -1;
+    }
+
+    /**
+     * Търси в колона с формули. Изчислените стойности се индексират веднъж, като
+     * клетките се четат ред по ред без снимка и без изключително заключване.
+     * Индексът се използва, докато в книгата няма нова промяна: формулите може
+     * да зависят от всяка клетка, включително в други таблици.
+     */
+    private int findEvaluated(int colIdx, Object key) {
+        long version = dataVersion();
+        LookupIndex.ColumnIndex index = lookupIndex.getEvaluated(colIdx, version);
+        if (index == null) {
+            // Търсене в колона, чиито стойности се изчисляват в момента, е цикъл
+            if (!EvaluationGuard.enterColumn(this, colIdx + 1)) return -1;
+            try {
+                index = LookupIndex.evaluate(this, getHeight(), colIdx);
+            } finally {
+                EvaluationGuard.exitColumn(this, colIdx + 1);
             }
-            currentCell.setNextCell(new StringCell(""));
+            // Промяна по време на строенето сменя версията и индексът ще се построи наново
+            lookupIndex.putEvaluated(colIdx, index, version);
         }
+        int rowIdx = index.find(key);
+        return rowIdx >= 0 ? rowIdx + 1 : -1;
+    }
+
+    /** Връща броя на редовете в таблицата. */
+    private int getHeight() {
+        Lock lock = structureLock.readLock();
+        lock.lock();
+        try {
+            return tableManager.getActualHeight();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long cacheId() {
+        return cacheId;
+    }
+
+    /**
+     * Връща число, което се променя при всяка промяна на данните - в книгата,
+     * ако таблицата е в книга, иначе в тази таблица.
+     */
+    long dataVersion() {
+        Workbook book = workbook;
+        return book != null ? book.getVersion() : changeCount.get();
+    }
+
+    /** Връща лентата ключалки за даден ред (0-базиран). */
+    private ReadWriteLock rowLock(int rowIdx) {
+        return rowLocks[rowIdx & (STRIPES - 1)];
     }
 
     // Добавя нов ред в края
     public void addRow() {
-        tableManager.addRow();
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try {
+            tableManager.addRow();
+        } finally {
+            lock.unlock();
+        }
     }
 
     // Връща ред по индекс (0-базиран)
     public Row getRow(int index) {
-        return tableManager.getRow(index);
+        Lock lock = structureLock.readLock();
+        lock.lock();
+        try {
+            return tableManager.getRow(index);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // Добавя нова колона в края
@@ -146,4 +961,4 @@ public class Spreadsheet {
     public Column getColumn(int index) {
         return tableManager.getColumn(index);
     }
-}
\ No newline at end of file
+}
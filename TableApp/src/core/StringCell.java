@@ -5,12 +5,19 @@ package core;
  */
 public class StringCell extends Cell {
     private String value;
+    /** Числовата стойност, изчислена веднъж при създаването на клетката. */
+    private double numericValue;
+    /** Дали текстът е число. */
+    private boolean numeric;
 
     /**
      * Създава клетка със зададена текстова стойност.
      */
     public StringCell(String value) {
         this.value = value;
+        double parsed = NumberParser.toDouble(value);
+        this.numeric = !Double.isNaN(parsed);
+        this.numericValue = numeric ? parsed : 0.0;
     }
 
     /**
@@ -21,14 +28,30 @@ public class StringCell extends Cell {
     }
 
     /**
-     * Опитва се да преобразува текстовата стойност в число.
-     * Ако преобразуването не е възможно, стойността остава 0.0.
+     * Връща текстовата стойност като число.
+     * Ако текстът не е число, стойността е 0.0.
      */
     public double getValue() {
-        try {
-            return Double.parseDouble(value);
-        } catch (NumberFormatException e) {
-            return 0.0;
-        }
+        return numericValue;
+    }
+
+    /**
+     * Размерът включва и низа със стойността.
+     */
+    @Override
+    public long estimateSize() {
+        return 32 + 40 + value.length();
+    }
+
+    /**
+     * Връща true, ако текстът на клетката е число.
+     */
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    @Override
+    public Cell copy() {
+        return new StringCell(value);
     }
 }
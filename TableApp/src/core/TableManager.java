@@ -1,41 +1,372 @@
 package core;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+
 /**
  * Клас, който управлява структурата на таблицата.
  * Отговаря за редовете и колоните.
+ *
+ * Редовете се пазят в блокове от до няколко хиляди реда. Над размерите на
+ * блоковете се поддържа дърво на Фенуик, така че намирането на ред по индекс,
+ * вмъкването и изтриването на ред са O(log n) - променя се само един блок,
+ * а останалите редове не се местят. Блок, който стане твърде голям, се
+ * разделя на два, а празен блок се премахва.
+ *
+ * Ако е зададен бюджет за памет, клетките на най-отдавна използваните блокове
+ * се изнасят във временен файл (вж. SpillFile) и се зареждат обратно при
+ * първото обръщение към ред от блока. Зареждането може да става при
+ * четене от няколко нишки, но изнасянето (trim) става само при изключителен
+ * достъп до таблицата, така че никой не държи ред, чиито клетки се освобождават.
  */
 public class TableManager {
-    private Row firstRow;
+    /** Брой редове, с които се пълни блок при добавяне в края. */
+    static final int BLOCK_SIZE = 1024;
+    /** Блок с повече редове от това се разделя на два. */
+    private static final int MAX_BLOCK_SIZE = 2 * BLOCK_SIZE;
+    /** След толкова редакции се проверява дали паметта е над бюджета. */
+    private static final int WRITES_PER_TRIM = 64;
+    /** Файлът за изнасяне се пренаписва само ако е поне толкова голям (и над половината е мъртва). */
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+    private List<RowBlock> blocks = new ArrayList<>();
+    /** Дърво на Фенуик над броя редове в блоковете (1-базирано). */
+    private int[] tree = new int[16];
+    private int rowCount;
     private Column firstColumn;
+    /**
+     * Текущото поколение. Всяка снимка го увеличава, а клетките на редовете
+     * от по-стари поколения може да са споделени със снимка и не се променят на място.
+     */
+    private int epoch;
+
+    /** Преномерирането на редовете от последното пренареждане, докато не бъде прочетено. */
+    private IntUnaryOperator movedRows;
+    /** Преномерирането на колоните от последното recordMove, докато не бъде прочетено. */
+    private IntUnaryOperator movedColumns;
+
+    /** Файлът за изнасяне на блокове или null, ако бюджет никога не е задаван. */
+    private SpillFile spillFile;
+    /** Бюджет за клетките в паметта в байтове (0 - без ограничение). */
+    private volatile long memoryBudget;
+    /** Пази полетата за изнасяне по-долу, защото блокове се зареждат и от нишки за четене. */
+    private final Object pageLock = new Object();
+    /** Блоковете със заредени клетки, подредени от най-отдавна използвания. */
+    private final LinkedHashMap<RowBlock, Boolean> loadedBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    /** Блоковете, чийто размер трябва да се преизчисли. */
+    private final List<RowBlock> staleBlocks = new ArrayList<>();
+    /** Сумата от размерите на заредените блокове. */
+    private long residentBytes;
+    /** Сумата от дължините на валидните записи във файла; останалото във файла са мъртви байтове. */
+    private long spilledBytes;
+    private int loadsSinceTrim;
+    private int writesSinceTrim;
 
     public TableManager() {
-        this.firstRow = null;
         this.firstColumn = null;
     }
 
-    // Добавя нов ред в края
-    public void addRow() {
-        Row newRow = new Row();
-        if (firstRow == null) {
-            firstRow = newRow;
+    // Добавя нов ред в края и го връща
+    public Row addRow() {
+        Row newRow = new Row(epoch);
+        RowBlock last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (last == null || last.rows.size() >= BLOCK_SIZE) {
+            last = new RowBlock(BLOCK_SIZE);
+            appendBlock(last);
+        }
+        touch(last, true);
+        last.add(newRow);
+        addToTree(blocks.size() - 1, 1);
+        rowCount++;
+        return newRow;
+    }
+
+    // Добавя в края готова поредица от редове
+    public void appendRows(List<Row> rows) {
+        for (int from = 0; from < rows.size(); from += BLOCK_SIZE) {
+            int to = Math.min(from + BLOCK_SIZE, rows.size());
+            RowBlock block = new RowBlock(to - from);
+            for (Row row : rows.subList(from, to)) {
+                block.add(row);
+                if (row.isPaged()) block.resident = false;
+            }
+            appendBlock(block);
+        }
+        rowCount += rows.size();
+    }
+
+    // Вмъква празен ред на даден индекс (0-базиран) и го връща.
+    // Индекс, равен на броя редове, добавя реда в края.
+    public Row insertRow(int index) {
+        if (index < 0 || index > rowCount) {
+            throw new IndexOutOfBoundsException("Row " + (index + 1) + " is outside the table");
+        }
+        if (index == rowCount) return addRow();
+        long position = locate(index);
+        int blockIdx = (int) (position >>> 32);
+        RowBlock block = blocks.get(blockIdx);
+        touch(block, true);
+        Row newRow = new Row(epoch);
+        block.add((int) position, newRow);
+        rowCount++;
+        if (block.rows.size() > MAX_BLOCK_SIZE) {
+            // Разделяме блока на два - дървото се строи наново, но това става рядко
+            List<Row> tail = block.rows.subList(block.rows.size() / 2, block.rows.size());
+            RowBlock next = new RowBlock(BLOCK_SIZE);
+            for (Row row : tail) {
+                next.add(row);
+            }
+            tail.clear();
+            blocks.add(blockIdx + 1, next);
+            rebuildTree();
+            register(next);
         } else {
-            Row current = firstRow;
-            while (current.getNextRow() != null) {
-                current = current.getNextRow();
+            addToTree(blockIdx, 1);
+        }
+        return newRow;
+    }
+
+    // Изтрива реда на даден индекс (0-базиран) и го връща
+    public Row deleteRow(int index) {
+        if (index < 0 || index >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + (index + 1) + " is outside the table");
+        }
+        long position = locate(index);
+        int blockIdx = (int) (position >>> 32);
+        RowBlock block = blocks.get(blockIdx);
+        touch(block, true);
+        Row removed = block.rows.remove((int) position);
+        rowCount--;
+        if (block.rows.isEmpty()) {
+            blocks.remove(blockIdx);
+            rebuildTree();
+            unregister(block);
+        } else {
+            addToTree(blockIdx, -1);
+        }
+        return removed;
+    }
+
+    // Вмъква празна клетка на дадена позиция (0-базирана) във всеки ред,
+    // който достига до нея. По-късите редове не се променят.
+    public void insertColumn(int colIdx) {
+        for (RowBlock block : blocks) {
+            touch(block, true);
+            for (Row row : block.rows) {
+                if (row.getCellCount() < colIdx + 1) continue;
+                if (row.getEpoch() != epoch) {
+                    row.detach(epoch);
+                }
+                row.insertCell(colIdx, new StringCell(""));
             }
-            current.setNextRow(newRow);
+            trim();
         }
     }
 
-    // Връща ред по индекс (0-базиран)
+    // Премахва клетката на дадена позиция (0-базирана) от всеки ред, който я има.
+    // Връща премахнатите клетки по индекс на реда (null за редовете без такава клетка).
+    public Cell[] deleteColumn(int colIdx) {
+        Cell[] removed = new Cell[rowCount];
+        int index = 0;
+        for (RowBlock block : blocks) {
+            touch(block, true);
+            for (Row row : block.rows) {
+                int rowIdx = index++;
+                if (row.getCellCount() < colIdx + 1) continue;
+                if (row.getEpoch() != epoch) {
+                    row.detach(epoch);
+                }
+                removed[rowIdx] = row.removeCell(colIdx);
+            }
+            trim();
+        }
+        return removed;
+    }
+
+    // Връща текущото поколение - новите редове трябва да се създават с него
+    public int getEpoch() {
+        return epoch;
+    }
+
+    // Връща ред по индекс (0-базиран).
+    // Ако клетките на блока са изнесени във файл, първо ги зарежда.
     public Row getRow(int index) {
-        Row current = firstRow;
+        if (index < 0 || index >= rowCount) return null;
+        long position = locate(index);
+        RowBlock block = blocks.get((int) (position >>> 32));
+        touch(block, false);
+        return block.rows.get((int) position);
+    }
+
+    // Връща ред по индекс (0-базиран) за промяна.
+    // Ако клетките на реда са споделени със снимка, първо ги заменя с копие.
+    // Самият ред остава на мястото си, така че блоковете не се променят.
+    public Row getRowForWrite(int index) {
+        if (index < 0 || index >= rowCount) return null;
+        long position = locate(index);
+        RowBlock block = blocks.get((int) (position >>> 32));
+        touch(block, true);
+        Row row = block.rows.get((int) position);
+        if (row.getEpoch() != epoch) {
+            row.detach(epoch);
+        }
+        return row;
+    }
+
+    // Обхожда всички редове по ред.
+    // При зададен бюджет блоковете се изнасят по време на обхождането,
+    // затова се извиква само при изключителен достъп до таблицата.
+    public void forEachRow(Consumer<Row> action) {
+        for (RowBlock block : blocks) {
+            touch(block, false);
+            block.rows.forEach(action);
+            trim();
+        }
+    }
+
+    // Пренарежда редовете: order[i] е старият индекс на реда, който застава на позиция i.
+    // Редовете само се разместват между блоковете, а препратките във формулите се
+    // преномерират, така че да сочат към същите данни.
+    public void reorder(int[] order) {
+        Row[] rows = new Row[rowCount];
         int i = 0;
-        while (current != null && i < index) {
-            current = current.getNextRow();
-            i++;
+        for (RowBlock block : blocks) {
+            for (Row row : block.rows) {
+                rows[i++] = row;
+            }
         }
-        return current;
+        int[] newIndex = new int[rows.length];
+        for (i = 0; i < order.length; i++) {
+            newIndex[order[i]] = i;
+        }
+
+        Row[] ordered = new Row[rows.length];
+        for (i = 0; i < order.length; i++) {
+            ordered[i] = rows[order[i]];
+        }
+        clearRows();
+        appendRows(Arrays.asList(ordered));
+
+        movedRows = r -> r >= 1 && r <= newIndex.length ? newIndex[r - 1] + 1 : r;
+        remapReferences(movedRows, c -> c);
+    }
+
+    // Връща преномерирането на редовете от последното reorder или recordMove
+    // (или null) и го забравя. Нужно е, за да се преномерират и препратките от други таблици.
+    public IntUnaryOperator takeMovedRows() {
+        IntUnaryOperator moved = movedRows;
+        movedRows = null;
+        return moved;
+    }
+
+    // Връща преномерирането на колоните от последното recordMove (или null) и го забравя.
+    public IntUnaryOperator takeMovedColumns() {
+        IntUnaryOperator moved = movedColumns;
+        movedColumns = null;
+        return moved;
+    }
+
+    // Запомня преномерирането на редовете и колоните след вмъкване или изтриване
+    // за takeMovedRows/takeMovedColumns. Самите препратки се преномерират от извикващия.
+    public void recordMove(IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        movedRows = rowMap;
+        movedColumns = colMap;
+    }
+
+    // Номер на ред след вмъкване на ред (или колона) с номер number (1-базиран)
+    public static IntUnaryOperator insertMap(int number) {
+        return r -> r >= number ? r + 1 : r;
+    }
+
+    // Номер на ред след изтриване на ред (или колона) с номер number; изтритият става 0 (#REF)
+    public static IntUnaryOperator deleteMap(int number) {
+        return r -> r == number ? 0 : r > number ? r - 1 : r;
+    }
+
+    // Преномерира препратките във всички формули в таблицата.
+    public void remapReferences(IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        forEachRow(row -> remapReferences(row, rowMap, colMap));
+    }
+
+    // Преномерира препратките във формулите на един ред.
+    // Редът се копира, ако е споделен със снимка.
+    public void remapReferences(Row row, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        remapReferences(row, null, rowMap, colMap);
+    }
+
+    // Преномерира препратките към таблица с име sheet (при null - към тази таблица)
+    // във формулите на един ред.
+    public void remapReferences(Row row, String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        remapReferences(row, sheet, rowMap, colMap, null);
+    }
+
+    // Като горния, но съобщава на listener (ако не е null) за всяка заменена формула.
+    public void remapReferences(Row row, String sheet, IntUnaryOperator rowMap, IntUnaryOperator colMap,
+                                RemapListener listener) {
+        touch(row.block, true);
+        int index = 0;
+        for (Cell cell = row.getFirstCell(); cell != null; cell = cell.getNextCell(), index++) {
+            if (!(cell instanceof FormulaCell)) continue;
+            FormulaCell formula = (FormulaCell) cell;
+            FormulaCell remapped = formula.remapReferences(sheet, rowMap, colMap);
+            if (remapped == formula) continue;
+            if (row.getEpoch() != epoch) {
+                row.detach(epoch);
+            }
+            row.replaceCell(index, remapped);
+            if (listener != null) listener.replaced(index, formula, remapped);
+            cell = remapped;
+        }
+    }
+
+    // Връща индекса (0-базиран) на реда в таблицата или -1, ако го няма
+    public int indexOf(Row row) {
+        RowBlock block = row.block;
+        int blockIdx = blocks.indexOf(block);
+        if (blockIdx < 0) return -1;
+        int position = block.rows.indexOf(row);
+        return position < 0 ? -1 : prefix(blockIdx) + position;
+    }
+
+    /**
+     * Получава всяка формула, заменена при преномериране на препратките:
+     * позицията ѝ в реда (0-базирана), старата и новата клетка.
+     */
+    public interface RemapListener {
+        void replaced(int position, FormulaCell oldCell, FormulaCell newCell);
+    }
+
+    // Създава неизменяема снимка на таблицата.
+    // Копират се само препратките към първите клетки на редовете;
+    // самите клетки се копират при първата промяна на реда след снимката.
+    // За изнесените редове снимката пази само позицията на записа им във файла.
+    public TableSnapshot snapshot() {
+        Cell[] rows = new Cell[rowCount];
+        long[] spilled = null;
+        int i = 0;
+        for (RowBlock block : blocks) {
+            for (Row row : block.rows) {
+                if (row.isPaged() && row.getSpillLength() > TableSnapshot.MAX_SPILL_LENGTH) {
+                    touch(block, false); // твърде дълъг ред за указател - зарежда се блокът
+                }
+                if (row.isPaged()) {
+                    if (spilled == null) spilled = new long[rowCount];
+                    spilled[i] = TableSnapshot.spillPointer(row.getSpillPosition(), row.getSpillLength());
+                }
+                rows[i++] = row.getFirstCell();
+            }
+        }
+        epoch++;
+        return spilled == null ? new TableSnapshot(rows) : new TableSnapshot(rows, spilled, spillFile);
     }
 
     // Добавя нова колона в края
@@ -63,11 +394,6 @@ public class TableManager {
         return current;
     }
 
-    // Връща първия ред
-    public Row getFirstRow() {
-        return firstRow;
-    }
-
     // Връща първата колона
     public Column getFirstColumn() {
         return firstColumn;
@@ -75,30 +401,308 @@ public class TableManager {
 
     // Изчиства цялата таблица
     public void clear() {
-        this.firstRow = null;
+        clearRows();
         this.firstColumn = null;
     }
 
+    // Оставя само първите height реда в таблицата
+    public void truncate(int height) {
+        if (height <= 0) {
+            clearRows();
+            return;
+        }
+        if (height >= rowCount) return;
+        long position = locate(height - 1);
+        int blockIdx = (int) (position >>> 32);
+        RowBlock block = blocks.get(blockIdx);
+        touch(block, true);
+        block.rows.subList((int) position + 1, block.rows.size()).clear();
+        List<RowBlock> removed = blocks.subList(blockIdx + 1, blocks.size());
+        for (RowBlock dropped : removed) {
+            unregister(dropped);
+        }
+        removed.clear();
+        rowCount = height;
+        rebuildTree();
+    }
+
     // Изчислява реалния брой използвани редове
     public int getActualHeight() {
-        int height = 0;
-        Row currentRow = firstRow;
-        while (currentRow != null) {
-            height++;
-            currentRow = currentRow.getNextRow();
-        }
-        return height;
+        return rowCount;
     }
 
     // Изчислява максималната ширина на таблицата
     public int getActualWidth() {
         int maxWidth = 0;
-        Row currentRow = firstRow;
-        while (currentRow != null) {
-            int rowWidth = currentRow.getCellCount();
-            maxWidth = Math.max(maxWidth, rowWidth);
-            currentRow = currentRow.getNextRow();
+        for (RowBlock block : blocks) {
+            touch(block, false);
+            for (Row row : block.rows) {
+                maxWidth = Math.max(maxWidth, row.getCellCount());
+            }
         }
         return maxWidth;
     }
+
+    /**
+     * Задава бюджет за клетките в паметта в байтове (0 - без ограничение).
+     * Блоковете над бюджета се изнасят във временен файл; формулите, прочетени
+     * обратно от него, сочат към owner. Извиква се при изключителен достъп.
+     */
+    public void setMemoryBudget(long bytes, Spreadsheet owner) {
+        synchronized (pageLock) {
+            if (spillFile == null) {
+                spillFile = new SpillFile(owner);
+                // Досега размерите не са следени - всички блокове се отчитат наново
+                for (RowBlock block : blocks) {
+                    register(block);
+                }
+            }
+            memoryBudget = bytes;
+        }
+        trim();
+    }
+
+    /**
+     * Връща true, ако е време да се провери бюджетът за памет - след зареждане
+     * на блок или след няколко редакции.
+     */
+    public boolean needsTrim() {
+        if (memoryBudget <= 0) return false;
+        synchronized (pageLock) {
+            return loadsSinceTrim > 0 || writesSinceTrim >= WRITES_PER_TRIM;
+        }
+    }
+
+    /**
+     * Изнася най-отдавна използваните блокове, докато заредените клетки не
+     * влязат в бюджета. Последно използваният блок винаги остава в паметта.
+     * Извиква се само при изключителен достъп до таблицата.
+     */
+    public void trim() {
+        if (memoryBudget <= 0) return;
+        synchronized (pageLock) {
+            loadsSinceTrim = 0;
+            writesSinceTrim = 0;
+            for (RowBlock block : staleBlocks) {
+                if (!block.stale) continue;
+                long size = block.measure();
+                if (loadedBlocks.containsKey(block)) {
+                    residentBytes += size - block.bytes;
+                }
+                block.bytes = size;
+                block.stale = false;
+                updateSpilled(block);
+            }
+            staleBlocks.clear();
+
+            Iterator<Map.Entry<RowBlock, Boolean>> lru = loadedBlocks.entrySet().iterator();
+            while (residentBytes > memoryBudget && loadedBlocks.size() > 1) {
+                RowBlock block = lru.next().getKey();
+                lru.remove();
+                evict(block);
+            }
+            compact();
+        }
+    }
+
+    /**
+     * Пренася живите записи в нов файл, когато мъртвите записи (на променени
+     * или изтрити редове) заемат над половината от файла. Снимките продължават
+     * да четат от стария файл, докато съществуват.
+     */
+    private void compact() {
+        long size = spillFile.size();
+        if (size < MIN_COMPACT_BYTES || (size - spilledBytes) * 2 <= size) return;
+        try {
+            spillFile = spillFile.compact(blocks);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write spill file", e);
+        }
+    }
+
+    /** Записва клетките на блока във файла и ги освобождава от паметта. */
+    private void evict(RowBlock block) {
+        try {
+            spillFile.write(block.rows);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write spill file", e);
+        }
+        boolean paged = false;
+        for (Row row : block.rows) {
+            if (row.getFirstCell() != null) {
+                row.unload();
+            }
+            paged |= row.isPaged();
+        }
+        residentBytes -= block.bytes;
+        block.bytes = 0;
+        block.resident = !paged;
+        updateSpilled(block);
+    }
+
+    /** Преизчислява дължината на валидните записи на блока във файла. */
+    private void updateSpilled(RowBlock block) {
+        long size = block.measureSpill();
+        spilledBytes += size - block.spillBytes;
+        block.spillBytes = size;
+    }
+
+    /**
+     * Отбелязва използването на блок и зарежда изнесените му клетки.
+     * write показва, че блокът ще се промени и размерът му трябва да се преизчисли.
+     */
+    private void touch(RowBlock block, boolean write) {
+        if (spillFile == null) return;
+        synchronized (pageLock) {
+            if (!block.resident) {
+                load(block);
+            }
+            loadedBlocks.put(block, Boolean.TRUE);
+            if (write) {
+                writesSinceTrim++;
+                markStale(block);
+            }
+        }
+    }
+
+    /** Чете клетките на изнесените редове на блока - с едно четене, ако записите са близо. */
+    private void load(RowBlock block) {
+        long from = Long.MAX_VALUE;
+        long to = 0;
+        long total = 0;
+        for (Row row : block.rows) {
+            if (!row.isPaged()) continue;
+            from = Math.min(from, row.getSpillPosition());
+            to = Math.max(to, row.getSpillPosition() + row.getSpillLength());
+            total += row.getSpillLength();
+        }
+        try {
+            // След сортиране редовете на блока може да са разпръснати из файла
+            ByteBuffer region = total > 0 && to - from <= 2 * total
+                    ? spillFile.read(from, (int) (to - from)) : null;
+            for (Row row : block.rows) {
+                if (!row.isPaged()) continue;
+                ByteBuffer data;
+                if (region != null) {
+                    data = region.duplicate();
+                    data.position((int) (row.getSpillPosition() - from));
+                } else {
+                    data = spillFile.read(row.getSpillPosition(), row.getSpillLength());
+                }
+                row.load(spillFile.decode(data), epoch);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read spill file", e);
+        }
+        loadsSinceTrim++;
+        markStale(block);
+        block.resident = true;
+    }
+
+    /** Започва да следи размера на нов блок. */
+    private void register(RowBlock block) {
+        if (!tracking()) return;
+        synchronized (pageLock) {
+            loadedBlocks.put(block, Boolean.TRUE);
+            markStale(block);
+        }
+    }
+
+    /** Спира да следи размера на премахнат блок. */
+    private void unregister(RowBlock block) {
+        if (!tracking()) return;
+        synchronized (pageLock) {
+            if (loadedBlocks.remove(block) != null) {
+                residentBytes -= block.bytes;
+            }
+            block.bytes = 0;
+            spilledBytes -= block.spillBytes;
+            block.spillBytes = 0;
+            block.stale = false; // вече не е в таблицата и не се преизчислява
+        }
+    }
+
+    /** Дали се следят размерите на блоковете (задаван е бюджет за памет). */
+    private boolean tracking() {
+        return spillFile != null;
+    }
+
+    /** Отбелязва, че размерът на блока трябва да се преизчисли при следващия trim. */
+    private void markStale(RowBlock block) {
+        if (!block.stale) {
+            block.stale = true;
+            staleBlocks.add(block);
+        }
+    }
+
+    /** Премахва всички редове. */
+    private void clearRows() {
+        blocks = new ArrayList<>();
+        tree = new int[16];
+        rowCount = 0;
+        synchronized (pageLock) {
+            loadedBlocks.clear();
+            staleBlocks.clear();
+            residentBytes = 0;
+            spilledBytes = 0;
+        }
+    }
+
+    /**
+     * Намира блока и позицията в него на ред по индекс (0-базиран).
+     * Връща номера на блока в горните 32 бита и позицията в долните.
+     */
+    private long locate(int index) {
+        int block = 0;
+        int remaining = index;
+        for (int step = Integer.highestOneBit(blocks.size()); step > 0; step >>= 1) {
+            int next = block + step;
+            if (next <= blocks.size() && tree[next] <= remaining) {
+                block = next;
+                remaining -= tree[next];
+            }
+        }
+        return ((long) block << 32) | remaining;
+    }
+
+    /** Добавя delta към броя редове на блок (0-базиран) в дървото. */
+    private void addToTree(int blockIdx, int delta) {
+        for (int i = blockIdx + 1; i <= blocks.size(); i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /** Добавя блок в края, като обновява дървото за O(log n). */
+    private void appendBlock(RowBlock block) {
+        blocks.add(block);
+        int k = blocks.size();
+        if (k >= tree.length) {
+            tree = Arrays.copyOf(tree, tree.length * 2);
+        }
+        // tree[k] покрива блоковете (k - lowbit(k), k]
+        tree[k] = block.rows.size() + prefix(k - 1) - prefix(k - (k & -k));
+        register(block);
+    }
+
+    /** Сума от броя редове в първите count блока. */
+    private int prefix(int count) {
+        int sum = 0;
+        for (int i = count; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /** Строи дървото наново за O(брой блокове) след разделяне или премахване на блок. */
+    private void rebuildTree() {
+        int n = blocks.size();
+        tree = new int[Math.max(16, Integer.highestOneBit(n) * 2 + 1)];
+        for (int i = 1; i <= n; i++) {
+            tree[i] += blocks.get(i - 1).rows.size();
+            int parent = i + (i & -i);
+            if (parent <= n) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
 }
@@ -0,0 +1,200 @@
+package core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Неизменяема снимка на таблицата в даден момент.
+ * Споделя клетките с живата таблица, докато те не бъдат променени,
+ * затова създаването ѝ е евтино. Записът, отпечатването и експортът
+ * могат да работят върху снимката, докато таблицата продължава да се редактира.
+ */
+public class TableSnapshot implements CellSource {
+    /** Най-голямата дължина на запис, която се побира в указател към файла. */
+    static final int MAX_SPILL_LENGTH = (1 << 23) - 1;
+    /** Колко байта най-много се четат наведнъж при обхождане на изнесени редове. */
+    private static final int READ_AHEAD_BYTES = 256 * 1024;
+    /** Брой прочетени от файла редове, които се пазят за повторно използване. */
+    private static final int SPILL_CACHE_ROWS = 4096;
+
+    /** Първата клетка на всеки ред; останалите се достигат чрез getNextCell(). */
+    private Cell[] rows;
+    /**
+     * За редовете, изнесени във файл към момента на снимката - позиция и дължина
+     * на записа им (вж. spillPointer), иначе 0. null, ако няма изнесени редове.
+     */
+    private long[] spilled;
+    private SpillFile spillFile;
+    /** Последните прочетени от файла редове. */
+    private Map<Integer, Cell> spillCache;
+    private int width = -1;
+    /** Номер на снимката за запазените стойности на формулите (вж. CellSource.cacheId). */
+    private final long cacheId = FormulaCell.newCacheId();
+    /** Индекси за LOOKUP - снимката не се променя, затова не се поддържат. */
+    private LookupIndex lookupIndex;
+    /** Снимките на таблиците от същата книга, взети заедно с тази (вж. Workbook.snapshot), или null. */
+    private Map<String, TableSnapshot> sheets;
+
+    public TableSnapshot(Cell[] rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * Създава снимка, в която част от редовете се четат от файла за изнасяне при нужда.
+     */
+    TableSnapshot(Cell[] rows, long[] spilled, SpillFile spillFile) {
+        this.rows = rows;
+        this.spilled = spilled;
+        this.spillFile = spillFile;
+        this.spillCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Cell> eldest) {
+                return size() > SPILL_CACHE_ROWS;
+            }
+        };
+    }
+
+    /**
+     * Пакетира позицията (до 2^40) и дължината (до 2^23) на запис в едно число, различно от 0.
+     */
+    static long spillPointer(long position, int length) {
+        return (position + 1) << 23 | length;
+    }
+
+    /**
+     * Връща броя редове в снимката.
+     */
+    public int getHeight() {
+        return rows.length;
+    }
+
+    /**
+     * Връща максималната ширина на редовете в снимката.
+     */
+    public int getWidth() {
+        if (width < 0) {
+            int maxWidth = 0;
+            for (int i = 0; i < rows.length; i++) {
+                int rowWidth = 0;
+                for (Cell cell = getFirstCell(i); cell != null; cell = cell.getNextCell()) {
+                    rowWidth++;
+                }
+                maxWidth = Math.max(maxWidth, rowWidth);
+            }
+            width = maxWidth;
+        }
+        return width;
+    }
+
+    /**
+     * Връща първата клетка на ред по индекс (0-базиран) или null за празен ред.
+     */
+    public Cell getFirstCell(int rowIndex) {
+        Cell first = rows[rowIndex];
+        if (first != null || spilled == null || spilled[rowIndex] == 0) return first;
+        return readSpilled(rowIndex);
+    }
+
+    /**
+     * Чете изнесен ред от файла; последните прочетени редове се пазят в кеш.
+     * Следващите редове, записани непосредствено след него, се четат със
+     * същото обръщение към файла, така че последователното обхождане е бързо.
+     */
+    private Cell readSpilled(int rowIndex) {
+        synchronized (spillCache) {
+            Cell cached = spillCache.get(rowIndex);
+            if (cached != null) return cached;
+        }
+        long start = position(spilled[rowIndex]);
+        long end = start + length(spilled[rowIndex]);
+        int last = rowIndex;
+        while (last + 1 < rows.length && last - rowIndex < SPILL_CACHE_ROWS / 4
+                && spilled[last + 1] != 0 && position(spilled[last + 1]) == end
+                && end - start < READ_AHEAD_BYTES) {
+            last++;
+            end += length(spilled[last]);
+        }
+        Cell first = null;
+        try {
+            ByteBuffer data = spillFile.read(start, (int) (end - start));
+            synchronized (spillCache) {
+                for (int i = rowIndex; i <= last; i++) {
+                    Cell cell = spillFile.decode(data);
+                    spillCache.put(i, cell);
+                    if (i == rowIndex) first = cell;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read spill file", e);
+        }
+        return first;
+    }
+
+    private static long position(long pointer) {
+        return (pointer >>> 23) - 1;
+    }
+
+    private static int length(long pointer) {
+        return (int) (pointer & MAX_SPILL_LENGTH);
+    }
+
+    /**
+     * Връща клетка по координати (ред и колона, започващи от 1).
+     */
+    @Override
+    public Cell getCell(int row, int col) {
+        int rowIdx = row - 1;
+        int colIdx = col - 1;
+        if (rowIdx < 0 || colIdx < 0 || rowIdx >= rows.length) {
+            return null;
+        }
+        Cell current = getFirstCell(rowIdx);
+        for (int i = 0; current != null && i < colIdx; i++) {
+            current = current.getNextCell();
+        }
+        return current;
+    }
+
+    @Override
+    public long cacheId() {
+        return cacheId;
+    }
+
+    @Override
+    public Map<String, TableSnapshot> sheets() {
+        return sheets;
+    }
+
+    /** Свързва снимката със снимките на другите таблици в книгата, взети в същия момент. */
+    void setSheets(Map<String, TableSnapshot> sheets) {
+        this.sheets = sheets;
+    }
+
+    /**
+     * Намира първия ред с дадения ключ в колона чрез индекс, построен при първото търсене.
+     */
+    @Override
+    public synchronized int findRow(int col, Object key) {
+        if (col < 1) return -1;
+        if (lookupIndex == null) {
+            lookupIndex = new LookupIndex();
+        }
+        LookupIndex.ColumnIndex index = lookupIndex.get(col - 1);
+        if (index == null) {
+            // Търсене в колона, чийто индекс се строи в момента (пряко или през
+            // други колони и таблици), е цикъл
+            if (!EvaluationGuard.enterColumn(this, col)) return -1;
+            try {
+                index = LookupIndex.build(this, col - 1);
+            } finally {
+                EvaluationGuard.exitColumn(this, col);
+            }
+            lookupIndex.put(col - 1, index);
+        }
+        int rowIdx = index.find(key);
+        return rowIdx >= 0 ? rowIdx + 1 : -1;
+    }
+}
@@ -0,0 +1,50 @@
+package core;
+
+/**
+ * Експортиране като стойности, разделени с табулация (TSV).
+ * Всички редове се допълват до ширината на таблицата. Табулация, нов ред и
+ * обратна наклонена черта в стойностите се записват като \t, \n и \\.
+ */
+public class TsvRowWriter implements RowWriter {
+    private int width;
+
+    @Override
+    public void prepare(TableSnapshot snapshot) {
+        width = snapshot.getWidth();
+    }
+
+    @Override
+    public void appendRow(StringBuilder sb, TableSnapshot snapshot, Cell firstCell) {
+        Cell cell = firstCell;
+        for (int c = 0; c < width; c++) {
+            if (c > 0) sb.append('\t');
+            if (cell != null) {
+                appendEscaped(sb, cell.getDisplay(snapshot));
+                cell = cell.getNextCell();
+            }
+        }
+        sb.append('\n');
+    }
+
+    /** Записва стойността, като заменя табулация, нов ред и обратна наклонена черта. */
+    static void appendEscaped(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '\t') sb.append("\\t");
+            else if (ch == '\n') sb.append("\\n");
+            else if (ch == '\r') sb.append("\\r");
+            else if (ch == '\\') sb.append("\\\\");
+            else sb.append(ch);
+        }
+    }
+
+    /** Дължината на стойността след appendEscaped. */
+    static int escapedLength(String value) {
+        int length = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '\t' || ch == '\n' || ch == '\r' || ch == '\\') length++;
+        }
+        return length;
+    }
+}
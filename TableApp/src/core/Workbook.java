@@ -0,0 +1,181 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Работна книга с няколко именувани таблици в един процес.
+ * Формулите в една таблица могат да сочат към клетки в друга (Sheet2!R1C1).
+ * Стойностите на формулите се изчисляват при четене, затова промяна в една
+ * таблица се вижда веднага в зависимите формули, без да се преизчислява
+ * цялата книга.
+ *
+ * Връзките между таблиците се пазят в индекса на зависимостите на всяка
+ * таблица. Когато в таблица се вмъкнат, изтрият или пренаредят редове или
+ * колони, книгата кара всяка таблица да преномерира препратките си към нея -
+ * само в редовете, които индексът ѝ сочи.
+ *
+ * Отпечатване, запис и експорт на таблица в книга работят върху снимки на
+ * всички таблици, взети в един момент (вж. snapshot), така че формулите с
+ * препратки към други таблици не смесват стойности отпреди и след редакции.
+ */
+public class Workbook {
+    /** Името на първата таблица в нова книга. */
+    public static final String DEFAULT_SHEET = "Sheet1";
+
+    private final Map<String, Spreadsheet> sheets = new LinkedHashMap<>();
+    /** Брой промени във всички таблици; по него се разбира, че изчислени стойности са остарели. */
+    private final AtomicLong version = new AtomicLong();
+    /** Колко най-много се чака заключването на следваща таблица при snapshot. */
+    private static final long SNAPSHOT_LOCK_TIMEOUT_MS = 10;
+
+    /**
+     * Създава книга с една празна таблица с име Sheet1.
+     */
+    public Workbook() {
+        this(new Spreadsheet());
+    }
+
+    /**
+     * Създава книга, в която first е таблицата с име Sheet1.
+     */
+    public Workbook(Spreadsheet first) {
+        first.setWorkbook(this);
+        sheets.put(DEFAULT_SHEET, first);
+    }
+
+    /**
+     * Връща таблицата с дадено име или null, ако няма такава.
+     */
+    public synchronized Spreadsheet getSheet(String name) {
+        return sheets.get(name);
+    }
+
+    /**
+     * Връща таблицата с дадено име, като я създава празна, ако няма такава.
+     * Името трябва да започва с буква и да съдържа само букви, цифри и '_'.
+     */
+    public synchronized Spreadsheet getOrCreateSheet(String name) {
+        Spreadsheet sheet = sheets.get(name);
+        if (sheet == null) {
+            if (!isValidName(name)) {
+                throw new IllegalArgumentException("Invalid sheet name: " + name);
+            }
+            sheet = new Spreadsheet();
+            sheet.setWorkbook(this);
+            sheets.put(name, sheet);
+        }
+        return sheet;
+    }
+
+    /**
+     * Връща имената на таблиците в реда, в който са създадени.
+     */
+    public synchronized List<String> getSheetNames() {
+        return new ArrayList<>(sheets.keySet());
+    }
+
+    /**
+     * Проверява дали низът може да бъде име на таблица.
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || !Character.isLetter(name.charAt(0))) return false;
+        for (int i = 1; i < name.length(); i++) {
+            if (!isNameChar(name.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /** Проверява дали символът може да е част от име на таблица. */
+    static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /** Връща броя на промените във всички таблици на книгата. */
+    long getVersion() {
+        return version.get();
+    }
+
+    /** Отбелязва промяна в някоя от таблиците. */
+    void changed() {
+        version.incrementAndGet();
+    }
+
+    /**
+     * Взима снимки на всички таблици в един момент и връща снимката на sheet.
+     * Препратките към други таблици във формулите на снимката се четат от
+     * техните снимки. underLock се изпълнява, докато таблиците са заключени.
+     *
+     * Таблиците се заключват в реда на създаването им. Нишка, която държи
+     * заключването на една таблица, може да чака друга (напр. сортиране,
+     * което изчислява препратки към друга таблица), затова всяко следващо
+     * заключване се чака ограничено време - при неуспех всички се освобождават
+     * и опитът се повтаря.
+     */
+    TableSnapshot snapshot(Spreadsheet sheet, Runnable underLock) {
+        List<String> names;
+        List<Spreadsheet> all;
+        synchronized (this) {
+            names = new ArrayList<>(sheets.keySet());
+            all = new ArrayList<>(sheets.values());
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                int locked = 0;
+                try {
+                    while (locked < all.size()) {
+                        if (!all.get(locked).lockForSnapshot(locked == 0 ? 0 : SNAPSHOT_LOCK_TIMEOUT_MS)) break;
+                        locked++;
+                    }
+                    if (locked == all.size()) {
+                        Map<String, TableSnapshot> snapshots = new HashMap<>();
+                        TableSnapshot result = null;
+                        for (int i = 0; i < all.size(); i++) {
+                            TableSnapshot snapshot = all.get(i).snapshotLocked(snapshots);
+                            snapshots.put(names.get(i), snapshot);
+                            if (all.get(i) == sheet) result = snapshot;
+                        }
+                        underLock.run();
+                        return result;
+                    }
+                } catch (InterruptedException e) {
+                    // Снимката се довършва; прекъсването се връща на нишката накрая
+                    interrupted = true;
+                } finally {
+                    for (int i = 0; i < locked; i++) {
+                        all.get(i).unlockForSnapshot();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Преномерира препратките към таблицата changed във всички таблици на книгата.
+     * Всяка таблица се заключва поотделно, затова методът се извиква, след като
+     * changed е освободила заключването си.
+     */
+    void referencesMoved(Spreadsheet changed, IntUnaryOperator rowMap, IntUnaryOperator colMap) {
+        String name = null;
+        List<Spreadsheet> all;
+        synchronized (this) {
+            for (Map.Entry<String, Spreadsheet> entry : sheets.entrySet()) {
+                if (entry.getValue() == changed) name = entry.getKey();
+            }
+            all = new ArrayList<>(sheets.values());
+        }
+        if (name == null) return;
+        for (Spreadsheet sheet : all) {
+            sheet.rewriteSheetReferences(name, rowMap, colMap);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Прост клиент за SheetServer.
+ * Изпраща командите от входа, без да чака отговорите, а отделна нишка
+ * извежда отговорите в реда, в който пристигат.
+ */
+public class SheetClient {
+    private String host;
+    private int port;
+
+    public SheetClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Изпраща всички редове от input и извежда отговорите в output.
+     * Връща се, след като бъде получен отговорът на последната команда.
+     */
+    public void run(InputStream input, PrintStream output) throws IOException, InterruptedException {
+        try (Socket socket = new Socket(host, port)) {
+            BufferedReader replies = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Thread readerThread = new Thread(() -> printReplies(replies, output), "sheet-replies");
+            readerThread.start();
+
+            BufferedReader commands = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = commands.readLine()) != null) {
+                writer.write(line);
+                writer.newLine();
+                if (!commands.ready()) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+            socket.shutdownOutput();
+            readerThread.join();
+        }
+    }
+
+    /** Извежда отговорите, без редовете, които ги разделят. */
+    private void printReplies(BufferedReader replies, PrintStream output) {
+        try {
+            String line;
+            while ((line = replies.readLine()) != null) {
+                if (!line.equals(SheetServer.END_OF_REPLY)) {
+                    output.println(line);
+                }
+            }
+        } catch (IOException e) {
+            output.println("Error: " + e.getMessage());
+        }
+        output.flush();
+    }
+}
@@ -0,0 +1,112 @@
+package server;
+
+import cli.CommandProcessor;
+import core.Spreadsheet;
+import core.Workbook;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TCP сървър, който споделя една работна книга между много клиенти.
+ * Всеки клиент започва от таблицата Sheet1 и може да превключва с use, без това
+ * да засяга другите клиенти.
+ * Клиентите изпращат същите команди като в конзолата (open, edit, print, save...),
+ * по една на ред. Отговорът на всяка команда завършва с ред, съдържащ само точка.
+ * Клиентът може да изпрати много команди наведнъж, без да чака отговорите -
+ * те се изпълняват по ред, а отговорите се изпращат на порции, когато входът се изчерпа.
+ */
+public class SheetServer {
+    /** Ред, с който завършва всеки отговор. */
+    public static final String END_OF_REPLY = ".";
+    public static final int DEFAULT_PORT = 5050;
+
+    private Workbook workbook;
+    private ServerSocket serverSocket;
+    private ExecutorService connections;
+
+    public SheetServer(Spreadsheet sheet) {
+        this.workbook = new Workbook(sheet);
+    }
+
+    /**
+     * Започва да слуша на даден порт на локалния адрес (0 - свободен порт).
+     */
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        // По една нишка на връзка; таблицата сама се грижи за заключването
+        connections = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "sheet-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Връща порта, на който слуша сървърът.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Приема връзки, докато сървърът не бъде спрян.
+     */
+    public void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> handle(socket));
+            } catch (SocketException e) {
+                break; // сървърът е спрян
+            } catch (IOException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Спира приемането на нови връзки и затваря нишките на клиентите.
+     */
+    public void stop() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    /** Обслужва една връзка до затварянето ѝ или до команда exit. */
+    private void handle(Socket socket) {
+        try (Socket client = socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(
+                     new BufferedOutputStream(client.getOutputStream()), false, StandardCharsets.UTF_8)) {
+            // exit затваря само тази връзка, а не целия сървър
+            boolean[] closed = new boolean[1];
+            CommandProcessor processor = new CommandProcessor(workbook, () -> closed[0] = true);
+            String line;
+            while (!closed[0] && (line = in.readLine()) != null) {
+                processor.process(line, out);
+                out.println(END_OF_REPLY);
+                // Докато има още изпратени команди, отговорите се натрупват в буфера
+                if (!closed[0] && !in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Клиентът е прекъснал връзката
+        }
+    }
+}
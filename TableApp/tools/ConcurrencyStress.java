@@ -0,0 +1,153 @@
+import core.Cell;
+import core.Spreadsheet;
+import core.TableSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Стрес тест за едновременни четения и редакции на една таблица.
+ *
+ * Няколко нишки редактират свои (различни) редове: в итерация it всяка
+ * клетка в колона c получава стойност it * 1000 + c, като колоните се
+ * редактират от първата към последната. Други нишки едновременно четат
+ * клетки и правят снимки.
+ *
+ * Проверява се, че:
+ * - всяка прочетена клетка съществува и има стойност, която някоя нишка е записала;
+ * - във всяка снимка всеки ред е последователен: итерациите на клетките
+ *   не растат отляво надясно и се различават най-много с 1
+ *   (т.е. снимката не вижда частично приложена редакция на клетка или разбъркани клетки);
+ * - снимката не се променя от редакциите след нея;
+ * - накрая всяка клетка има стойността от последната итерация.
+ *
+ * Компилиране и стартиране (от папка TableApp):
+ *   javac -encoding UTF-8 -d out/classes $(find src -name '*.java') tools/ConcurrencyStress.java
+ *   java -cp out/classes ConcurrencyStress [бюджет за памет в MB]
+ * С бюджет за памет редовете се изнасят във временен файл по време на теста.
+ * Изходният код е 0 при успех и 1 при нарушение.
+ */
+public class ConcurrencyStress {
+    private static final int ROWS = 2000;
+    private static final int COLUMNS = 10;
+    private static final int ITERATIONS = 30;
+    private static final int WRITERS = 8;
+    private static final int READERS = 4;
+
+    public static void main(String[] args) throws Exception {
+        Spreadsheet sheet = new Spreadsheet();
+        if (args.length > 0) {
+            sheet.setMemoryBudget(Long.parseLong(args[0]) << 20);
+        }
+        for (int r = 1; r <= ROWS; r++) {
+            for (int c = 1; c <= COLUMNS; c++) {
+                sheet.edit(r, c, "" + c);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(WRITERS + READERS);
+        CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Future<?>> tasks = new ArrayList<>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            int first = w + 1;
+            tasks.add(pool.submit(() -> {
+                try {
+                    for (int it = 1; it <= ITERATIONS; it++) {
+                        for (int r = first; r <= ROWS; r += WRITERS) {
+                            for (int c = 1; c <= COLUMNS; c++) {
+                                sheet.edit(r, c, "" + (it * 1000 + c));
+                            }
+                        }
+                    }
+                } finally {
+                    writersDone.countDown();
+                }
+                return null;
+            }));
+        }
+        for (int k = 0; k < READERS; k++) {
+            tasks.add(pool.submit(() -> {
+                long reads = 0;
+                while (!stop.get()) {
+                    for (int r = 1; r <= ROWS; r++) {
+                        int c = 1 + (int) (reads++ % COLUMNS);
+                        checkValue(sheet.getCell(r, c), r, c);
+                    }
+                    checkSnapshot(sheet.snapshot());
+                }
+                return null;
+            }));
+        }
+
+        writersDone.await();
+        stop.set(true);
+        pool.shutdown();
+        for (Future<?> task : tasks) {
+            task.get(); // хвърля грешката от нишката, ако има такава
+        }
+
+        for (int r = 1; r <= ROWS; r++) {
+            for (int c = 1; c <= COLUMNS; c++) {
+                if (sheet.getCell(r, c).getValue() != ITERATIONS * 1000 + c) {
+                    fail("R" + r + "C" + c + " is " + sheet.getCell(r, c).getDisplay() + " at the end");
+                }
+            }
+        }
+        System.out.println("OK: " + ROWS + "x" + COLUMNS + ", " + WRITERS + " writers, " + READERS + " readers");
+    }
+
+    /** Итерацията, в която е записана стойността (0 - началната стойност). */
+    private static int iteration(Cell cell, int row, int col) {
+        if (cell == null) fail("R" + row + "C" + col + " is missing");
+        long value = (long) cell.getValue();
+        if (value % 1000 != col || value / 1000 > ITERATIONS) {
+            fail("R" + row + "C" + col + " has a value no writer wrote: " + cell.getDisplay());
+        }
+        return (int) (value / 1000);
+    }
+
+    private static void checkValue(Cell cell, int row, int col) {
+        iteration(cell, row, col);
+    }
+
+    /** Проверява редовете на снимката и че тя не се променя след редакциите. */
+    private static void checkSnapshot(TableSnapshot snapshot) throws InterruptedException {
+        if (snapshot.getHeight() != ROWS) fail("snapshot has " + snapshot.getHeight() + " rows");
+        int row = 1 + (int) Math.floorMod(System.nanoTime(), (long) ROWS);
+        String before = rowText(snapshot, row);
+        for (int r = 1; r <= ROWS; r++) {
+            int previous = -1;
+            for (int c = 1; c <= COLUMNS; c++) {
+                int it = iteration(snapshot.getCell(r, c), r, c);
+                if (previous >= 0 && (it > previous || previous - it > 1)) {
+                    fail("snapshot row " + r + " is inconsistent: " + rowText(snapshot, r));
+                }
+                previous = it;
+            }
+        }
+        Thread.sleep(1);
+        if (!before.equals(rowText(snapshot, row))) {
+            fail("snapshot row " + row + " changed after later edits");
+        }
+    }
+
+    private static String rowText(TableSnapshot snapshot, int row) {
+        StringBuilder sb = new StringBuilder();
+        for (int c = 1; c <= COLUMNS; c++) {
+            sb.append(snapshot.getCell(row, c).getDisplay()).append(' ');
+        }
+        return sb.toString();
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAILED: " + message);
+        System.exit(1);
+    }
+}